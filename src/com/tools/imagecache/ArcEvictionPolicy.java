@@ -0,0 +1,155 @@
+package com.tools.imagecache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 按字节数计算的自适应替换缓存（ARC）淘汰策略。
+ *
+ * <p>只被访问过一次的entry在T1中，再次被读取的entry在T2中。被淘汰的entry的key和大小
+ * 留在对应的影子列表B1/B2中：命中B1说明T1太小，命中B2说明T2太小，策略据此调整T1的目标
+ * 字节数，在"最近写入"和"经常读取"之间自动取舍，不需要像SLRU那样固定保护段的比例。
+ *
+ * <p>从日志恢复的entry都进入T1，影子列表不持久化。
+ */
+final class ArcEvictionPolicy implements EvictionPolicy {
+    /* 四个列表都按插入顺序排列，移动entry时先删除再插入 */
+    private final LinkedHashMap<String, Long> t1 = new LinkedHashMap<String, Long>();
+    private final LinkedHashMap<String, Long> t2 = new LinkedHashMap<String, Long>();
+    private final LinkedHashMap<String, Long> b1 = new LinkedHashMap<String, Long>();
+    private final LinkedHashMap<String, Long> b2 = new LinkedHashMap<String, Long>();
+    private final long maxSize;
+    private long t1Size;
+    private long t2Size;
+    private long b1Size;
+    private long b2Size;
+    /** T1的目标字节数 */
+    private long target;
+
+    /* 最近一次onRemove删除的entry，onEvict时放入影子列表 */
+    private String removedKey;
+    private long removedSize;
+    private boolean removedFromT2;
+
+    ArcEvictionPolicy(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    @Override public void onRead(String key) {
+        Long size = t1.remove(key);
+        if (size != null) {
+            t1Size -= size;
+            t2.put(key, size);
+            t2Size += size;
+            return;
+        }
+        size = t2.remove(key);
+        if (size != null) {
+            t2.put(key, size);
+        }
+    }
+
+    @Override public void onMiss(String key) {
+    }
+
+    @Override public void onWrite(String key, long size) {
+        Long oldSize = t1.remove(key);
+        if (oldSize != null) {
+            t1.put(key, size);
+            t1Size += size - oldSize;
+            return;
+        }
+        oldSize = t2.remove(key);
+        if (oldSize != null) {
+            t2.put(key, size);
+            t2Size += size - oldSize;
+            return;
+        }
+        final Long ghostSize1 = b1.remove(key);
+        final Long ghostSize2 = ghostSize1 == null ? b2.remove(key) : null;
+        if (ghostSize1 != null) {
+            // T1淘汰得太早，扩大T1
+            b1Size -= ghostSize1;
+            target = Math.min(maxSize, target + adaptation(size, b2Size, b1Size));
+        } else if (ghostSize2 != null) {
+            // T2淘汰得太早，缩小T1
+            b2Size -= ghostSize2;
+            target = Math.max(0, target - adaptation(size, b1Size, b2Size));
+        } else {
+            t1.put(key, size);
+            t1Size += size;
+            return;
+        }
+        t2.put(key, size);
+        t2Size += size;
+    }
+
+    /**
+     * 调整幅度至少为entry的大小，另一个影子列表越大调整越多。
+     */
+    private static long adaptation(long size, long otherGhostSize, long ghostSize) {
+        if (ghostSize <= 0 || otherGhostSize <= ghostSize) {
+            return size;
+        }
+        return (long) (size * ((double) otherGhostSize / ghostSize));
+    }
+
+    @Override public void onRemove(String key) {
+        removedKey = null;
+        Long size = t1.remove(key);
+        if (size != null) {
+            t1Size -= size;
+            remember(key, size, false);
+            return;
+        }
+        size = t2.remove(key);
+        if (size != null) {
+            t2Size -= size;
+            remember(key, size, true);
+        }
+    }
+
+    private void remember(String key, long size, boolean fromT2) {
+        removedKey = key;
+        removedSize = size;
+        removedFromT2 = fromT2;
+    }
+
+    @Override public void onEvict(String key) {
+        if (!key.equals(removedKey)) {
+            return;
+        }
+        removedKey = null;
+        if (removedFromT2) {
+            b2.put(key, removedSize);
+            b2Size += removedSize;
+        } else {
+            b1.put(key, removedSize);
+            b1Size += removedSize;
+        }
+        trimGhosts();
+    }
+
+    private void trimGhosts() {
+        while (t1Size + b1Size > maxSize && !b1.isEmpty()) {
+            b1Size -= removeEldest(b1);
+        }
+        while (t1Size + t2Size + b1Size + b2Size > 2 * maxSize && !b2.isEmpty()) {
+            b2Size -= removeEldest(b2);
+        }
+    }
+
+    private static long removeEldest(LinkedHashMap<String, Long> list) {
+        final Map.Entry<String, Long> eldest = list.entrySet().iterator().next();
+        list.remove(eldest.getKey());
+        return eldest.getValue();
+    }
+
+    @Override public Iterator<String> evictionOrder() {
+        if (!t1.isEmpty() && (t1Size > target || t2.isEmpty())) {
+            return EvictionOrder.concat(t1.keySet().iterator(), t2.keySet().iterator());
+        }
+        return EvictionOrder.concat(t2.keySet().iterator(), t1.keySet().iterator());
+    }
+}
@@ -0,0 +1,502 @@
+package com.tools.imagecache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * {@link DiskLruCache}使用的二进制日志格式。
+ *
+ * <p>日志以16字节的文件头开始：魔数"DLRC"、格式版本、应用版本和每个entry的value数，均为
+ * big-endian的int。之后的每条记录都以1字节的操作码和16字节的key摘要开头，CLEAN记录后面
+ * 再跟valueCount个varint编码的value长度：
+ * <pre>
+ *     CLEAN  [0x01][key 16 bytes][varint length] x valueCount
+ *     DIRTY  [0x02][key 16 bytes]
+ *     REMOVE [0x03][key 16 bytes]
+ *     READ   [0x04][key 16 bytes]
+ *     PACKED [0x05][key 16 bytes]([varint length][varint location + 1]) x valueCount
+ * </pre>
+ * PACKED记录用于有value保存在{@link PackStore}段文件中的entry，位置为0表示该value保存在
+ * 单独的文件中。
+ *
+ * <p>key摘要：32位小写十六进制的key（例如{@link ImageCache#hashKeyForDisk}的结果）直接按字节
+ * 解码，其它key使用其UTF-8字节的MD5。缓存文件名使用摘要的十六进制形式，所以对十六进制key来说
+ * 文件名与原来完全一致。
+ *
+ * <p>写入时先写入内存缓冲区，再通过FileChannel追加到文件尾部。读取时遇到不完整的尾部记录
+ * （写入过程中进程被杀）会停止读取，并由调用方截断到最后一条完整记录。
+ *
+ * <p>检查点文件保存某一时刻全部entry的紧凑镜像，打开缓存时先加载检查点，再只回放日志中
+ * 检查点偏移之后的记录：
+ * <pre>
+ *     header [magic "DLCK"][version][appVersion][valueCount]
+ *            [journal offset 8 bytes][next sequence number 8 bytes][entry count]
+ *     entry  [flags][key 16 bytes][varint sequence number][varint length] x valueCount
+ *            ([varint location + 1] x valueCount，仅当flags含FLAG_PACKED时)
+ * </pre>
+ * entry按LRU顺序（最久未使用的在前）排列，flags表示entry是否可读、是否正在被编辑、
+ * 是否有value保存在段文件中。
+ */
+final class BinaryJournal {
+    static final int MAGIC = 0x444c5243; // "DLRC"
+    static final int VERSION_2 = 2;
+    static final int HEADER_SIZE = 16;
+    static final int KEY_SIZE = 16;
+
+    static final byte OP_CLEAN = 1;
+    static final byte OP_DIRTY = 2;
+    static final byte OP_REMOVE = 3;
+    static final byte OP_READ = 4;
+    static final byte OP_PACKED = 5;
+
+    static final int CHECKPOINT_MAGIC = 0x444c434b; // "DLCK"
+    static final int CHECKPOINT_VERSION_1 = 1;
+    static final int CHECKPOINT_HEADER_SIZE = 36;
+    static final byte FLAG_READABLE = 1;
+    static final byte FLAG_DIRTY = 2;
+    static final byte FLAG_PACKED = 4;
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_VARINT_SIZE = 10;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private BinaryJournal() {
+    }
+
+    /**
+     * Returns true if {@code file} starts with the binary journal magic.
+     */
+    static boolean isBinary(File file) throws IOException {
+        final InputStream in = new FileInputStream(file);
+        try {
+            final byte[] magic = new byte[4];
+            int read = 0;
+            while (read < magic.length) {
+                final int count = in.read(magic, read, magic.length - read);
+                if (count == -1) {
+                    return false;
+                }
+                read += count;
+            }
+            return ByteBuffer.wrap(magic).getInt() == MAGIC;
+        } finally {
+            DiskLruCache.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Truncates {@code file} to {@code length} bytes.
+     */
+    static void truncate(File file, long length) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.getChannel().truncate(length);
+        } finally {
+            DiskLruCache.closeQuietly(raf);
+        }
+    }
+
+    /**
+     * 返回key对应的规范形式：十六进制key原样返回，其它key返回其MD5的十六进制形式。
+     */
+    static String canonicalKey(String key) {
+        if (isHexKey(key)) {
+            return key;
+        }
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("MD5");
+            return toHex(digest.digest(key.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    static boolean isHexKey(String key) {
+        if (key.length() != KEY_SIZE * 2) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            if (hexValue(key.charAt(i)) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static String toHex(byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+
+    static void putKey(ByteBuffer buffer, String key) {
+        for (int i = 0; i < KEY_SIZE; i++) {
+            buffer.put((byte) ((hexValue(key.charAt(i * 2)) << 4) | hexValue(key.charAt(i * 2 + 1))));
+        }
+    }
+
+    static String getKey(ByteBuffer buffer) {
+        final char[] chars = new char[KEY_SIZE * 2];
+        for (int i = 0; i < KEY_SIZE; i++) {
+            final byte b = buffer.get();
+            chars[i * 2] = HEX_DIGITS[(b >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX_DIGITS[b & 0xf];
+        }
+        return new String(chars);
+    }
+
+    static void putVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Reads an unsigned varint, or returns -1 if the buffer ends before it does.
+     */
+    static long getVarint(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    static int maxRecordSize(int valueCount) {
+        return 1 + KEY_SIZE + (valueCount * 2 + 1) * MAX_VARINT_SIZE;
+    }
+
+    /**
+     * 缓冲的日志写入器，通过FileChannel追加写入。
+     */
+    static final class Writer implements Closeable {
+        private final FileOutputStream out;
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private long position;
+
+        Writer(File file, boolean append, int valueCount) throws IOException {
+            this.out = new FileOutputStream(file, append);
+            this.channel = out.getChannel();
+            this.buffer = ByteBuffer.allocate(
+                    Math.max(DiskLruCache.IO_BUFFER_SIZE, maxRecordSize(valueCount)));
+            this.position = append ? channel.size() : 0;
+        }
+
+        void writeHeader(int appVersion, int valueCount) throws IOException {
+            ensure(HEADER_SIZE);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION_2);
+            buffer.putInt(appVersion);
+            buffer.putInt(valueCount);
+        }
+
+        void writeRecord(byte op, String key) throws IOException {
+            ensure(1 + KEY_SIZE);
+            buffer.put(op);
+            putKey(buffer, key);
+        }
+
+        void writeClean(String key, long[] lengths) throws IOException {
+            ensure(maxRecordSize(lengths.length));
+            buffer.put(OP_CLEAN);
+            putKey(buffer, key);
+            for (long length : lengths) {
+                putVarint(buffer, length);
+            }
+        }
+
+        void writePacked(String key, long[] lengths, long[] locations) throws IOException {
+            ensure(maxRecordSize(lengths.length));
+            buffer.put(OP_PACKED);
+            putKey(buffer, key);
+            for (int i = 0; i < lengths.length; i++) {
+                putVarint(buffer, lengths[i]);
+                putVarint(buffer, locations[i] + 1);
+            }
+        }
+
+        void writeCheckpointHeader(int appVersion, int valueCount, long journalOffset,
+                long nextSequenceNumber, int entryCount) throws IOException {
+            ensure(CHECKPOINT_HEADER_SIZE);
+            buffer.putInt(CHECKPOINT_MAGIC);
+            buffer.putInt(CHECKPOINT_VERSION_1);
+            buffer.putInt(appVersion);
+            buffer.putInt(valueCount);
+            buffer.putLong(journalOffset);
+            buffer.putLong(nextSequenceNumber);
+            buffer.putInt(entryCount);
+        }
+
+        void writeCheckpointEntry(byte flags, String key, long sequenceNumber, long[] lengths,
+                long[] locations) throws IOException {
+            ensure(maxRecordSize(lengths.length));
+            buffer.put(flags);
+            putKey(buffer, key);
+            putVarint(buffer, sequenceNumber);
+            for (long length : lengths) {
+                putVarint(buffer, length);
+            }
+            if ((flags & FLAG_PACKED) != 0) {
+                for (long location : locations) {
+                    putVarint(buffer, location + 1);
+                }
+            }
+        }
+
+        /**
+         * Returns the journal offset after every record written so far.
+         */
+        long position() {
+            return position + buffer.position();
+        }
+
+        private void ensure(int size) throws IOException {
+            if (buffer.remaining() < size) {
+                drain();
+            }
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        void flush() throws IOException {
+            drain();
+        }
+
+        @Override public void close() throws IOException {
+            try {
+                drain();
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * 顺序读取日志记录。
+     */
+    static final class Reader implements Closeable {
+        private final FileInputStream in;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final int valueCount;
+        private long bufferStart;
+        private long validLength;
+        private boolean eof;
+
+        byte op;
+        String key;
+        long sequenceNumber;
+        final long[] lengths;
+        final long[] locations;
+
+        /* 检查点文件头 */
+        long checkpointJournalOffset;
+        long checkpointSequenceNumber;
+        int checkpointEntryCount;
+
+        Reader(File file, int valueCount) throws IOException {
+            this.in = new FileInputStream(file);
+            this.channel = in.getChannel();
+            this.valueCount = valueCount;
+            this.lengths = new long[valueCount];
+            this.locations = new long[valueCount];
+            buffer.limit(0);
+        }
+
+        /**
+         * Reads and validates the header.
+         *
+         * @throws IOException if the header doesn't match.
+         */
+        void readHeader(int appVersion) throws IOException {
+            fill(HEADER_SIZE);
+            if (buffer.remaining() < HEADER_SIZE) {
+                throw new IOException("truncated journal header");
+            }
+            final int magic = buffer.getInt();
+            final int version = buffer.getInt();
+            final int appVersionValue = buffer.getInt();
+            final int valueCountValue = buffer.getInt();
+            if (magic != MAGIC || version != VERSION_2
+                    || appVersionValue != appVersion || valueCountValue != valueCount) {
+                throw new IOException("unexpected journal header: [" + magic + ", " + version
+                        + ", " + appVersionValue + ", " + valueCountValue + "]");
+            }
+            validLength = HEADER_SIZE;
+        }
+
+        /**
+         * Reads and validates a checkpoint header.
+         *
+         * @throws IOException if the header doesn't match.
+         */
+        void readCheckpointHeader(int appVersion) throws IOException {
+            fill(CHECKPOINT_HEADER_SIZE);
+            if (buffer.remaining() < CHECKPOINT_HEADER_SIZE) {
+                throw new IOException("truncated checkpoint header");
+            }
+            final int magic = buffer.getInt();
+            final int version = buffer.getInt();
+            final int appVersionValue = buffer.getInt();
+            final int valueCountValue = buffer.getInt();
+            if (magic != CHECKPOINT_MAGIC || version != CHECKPOINT_VERSION_1
+                    || appVersionValue != appVersion || valueCountValue != valueCount) {
+                throw new IOException("unexpected checkpoint header: [" + magic + ", " + version
+                        + ", " + appVersionValue + ", " + valueCountValue + "]");
+            }
+            checkpointJournalOffset = buffer.getLong();
+            checkpointSequenceNumber = buffer.getLong();
+            checkpointEntryCount = buffer.getInt();
+        }
+
+        /**
+         * Reads the next checkpoint entry into {@link #op} (the entry flags),
+         * {@link #key}, {@link #sequenceNumber} and {@link #lengths}.
+         *
+         * @throws IOException if the entry is truncated.
+         */
+        void nextCheckpointEntry() throws IOException {
+            fill(maxRecordSize(valueCount));
+            if (buffer.remaining() < 1 + KEY_SIZE) {
+                throw new IOException("truncated checkpoint");
+            }
+            op = buffer.get();
+            key = getKey(buffer);
+            sequenceNumber = getVarint(buffer);
+            for (int i = 0; i < valueCount; i++) {
+                lengths[i] = getVarint(buffer);
+                if (lengths[i] < 0) {
+                    throw new IOException("truncated checkpoint");
+                }
+            }
+            for (int i = 0; i < valueCount; i++) {
+                locations[i] = (op & FLAG_PACKED) != 0
+                        ? getVarint(buffer) - 1 : PackStore.NO_LOCATION;
+                if (locations[i] < PackStore.NO_LOCATION) {
+                    throw new IOException("truncated checkpoint");
+                }
+            }
+            if (sequenceNumber < 0) {
+                throw new IOException("truncated checkpoint");
+            }
+        }
+
+        /**
+         * Positions the reader at {@code offset}, which must be a record boundary.
+         */
+        void seek(long offset) throws IOException {
+            channel.position(offset);
+            bufferStart = offset;
+            buffer.clear();
+            buffer.limit(0);
+            eof = false;
+            validLength = offset;
+        }
+
+        /**
+         * Reads the next record into {@link #op}, {@link #key} and {@link #lengths}.
+         *
+         * @return false at the end of the journal or at a truncated record.
+         * @throws IOException if the record is malformed.
+         */
+        boolean next() throws IOException {
+            fill(maxRecordSize(valueCount));
+            if (buffer.remaining() < 1 + KEY_SIZE) {
+                return false;
+            }
+            op = buffer.get();
+            key = getKey(buffer);
+            if (op == OP_CLEAN) {
+                for (int i = 0; i < valueCount; i++) {
+                    final long length = getVarint(buffer);
+                    if (length < 0) {
+                        return false;
+                    }
+                    lengths[i] = length;
+                    locations[i] = PackStore.NO_LOCATION;
+                }
+            } else if (op == OP_PACKED) {
+                for (int i = 0; i < valueCount; i++) {
+                    final long length = getVarint(buffer);
+                    final long location = getVarint(buffer);
+                    if (length < 0 || location < 0) {
+                        return false;
+                    }
+                    lengths[i] = length;
+                    locations[i] = location - 1;
+                }
+            } else if (op != OP_DIRTY && op != OP_REMOVE && op != OP_READ) {
+                throw new IOException("unexpected journal record: " + op);
+            }
+            validLength = bufferStart + buffer.position();
+            return true;
+        }
+
+        /**
+         * Returns the offset just after the last complete record.
+         */
+        long validLength() {
+            return validLength;
+        }
+
+        private void fill(int size) throws IOException {
+            if (buffer.remaining() >= size || eof) {
+                return;
+            }
+            bufferStart += buffer.position();
+            buffer.compact();
+            while (buffer.position() < size) {
+                final int count = channel.read(buffer);
+                if (count == -1) {
+                    eof = true;
+                    break;
+                }
+            }
+            buffer.flip();
+        }
+
+        @Override public void close() throws IOException {
+            in.close();
+        }
+    }
+}
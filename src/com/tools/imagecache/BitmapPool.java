@@ -0,0 +1,271 @@
+package com.tools.imagecache;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.widget.ImageView;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+/**
+ * 可复用位图池。内存缓存淘汰的位图放入池中，解码时通过{@link BitmapFactory.Options#inBitmap}
+ * 复用其内存，避免滑动列表时不断分配大块内存引起GC停顿。
+ *
+ * <p>位图按{@link Bitmap#getAllocationByteCount()}分组，取出时选择不小于所需字节数的最小位图，
+ * 但不超过所需字节数的{@link #MAX_SIZE_MULTIPLE}倍，避免小缩略图占用大位图。池中位图的总字节数
+ * 超过预算时丢弃最早放入的位图。
+ *
+ * <p>只接受可变且未回收的位图；仍显示在ImageView上的位图（见{@link #setDisplayed}）和
+ * 正在发送到ImageView的位图（见{@link #pin}）不会放入池中。
+ */
+public final class BitmapPool {
+    private static final String TAG = "BitmapPool";
+
+    /** 复用的位图最多是所需字节数的倍数 */
+    static final int MAX_SIZE_MULTIPLE = 4;
+
+    /** 每个ImageView当前显示的位图 */
+    private static final Map<ImageView, Bitmap> DISPLAYED = new WeakHashMap<ImageView, Bitmap>();
+    /** 已经解码、还没有在主线程显示的位图和等待显示的次数，由DISPLAYED的锁保护 */
+    private static final Map<Bitmap, Integer> PINNED = new HashMap<Bitmap, Integer>();
+
+    private final long maxSize;
+    private final TreeMap<Integer, List<Bitmap>> bySize = new TreeMap<Integer, List<Bitmap>>();
+    /** 放入顺序，用于按预算淘汰 */
+    private final LinkedHashSet<Bitmap> order = new LinkedHashSet<Bitmap>();
+    private long size;
+
+    private long requestCount;
+    private long hitCount;
+    private long reusedBytes;
+    private long putCount;
+    private long rejectedCount;
+    private long evictionCount;
+
+    /**
+     * @param maxSize 池中位图的最大总字节数
+     */
+    public BitmapPool(long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * 记录imageView当前显示的位图，显示中的位图不会放入池中。
+     * 在主线程上ImageView显示位图之前调用，bitmap为null表示清除记录。
+     */
+    static void setDisplayed(ImageView imageView, Bitmap bitmap) {
+        synchronized (DISPLAYED) {
+            if (bitmap == null) {
+                DISPLAYED.remove(imageView);
+            } else {
+                DISPLAYED.put(imageView, bitmap);
+            }
+        }
+    }
+
+    /**
+     * 标记一个等待显示的位图，调用{@link #unpin}相同次数之前不会放入池中。
+     * 工作线程在把位图写入内存缓存之前调用，VIEW仍在显示的旧位图的记录不受影响。
+     */
+    static void pin(Bitmap bitmap) {
+        synchronized (DISPLAYED) {
+            final Integer count = PINNED.get(bitmap);
+            PINNED.put(bitmap, count == null ? 1 : count + 1);
+        }
+    }
+
+    static void unpin(Bitmap bitmap) {
+        synchronized (DISPLAYED) {
+            final Integer count = PINNED.get(bitmap);
+            if (count == null || count <= 1) {
+                PINNED.remove(bitmap);
+            } else {
+                PINNED.put(bitmap, count - 1);
+            }
+        }
+    }
+
+    static boolean isDisplayed(Bitmap bitmap) {
+        synchronized (DISPLAYED) {
+            return PINNED.containsKey(bitmap) || DISPLAYED.containsValue(bitmap);
+        }
+    }
+
+    /**
+     * 放入一个不再使用的位图。
+     * @return 是否放入池中
+     */
+    public boolean put(Bitmap bitmap) {
+        if (bitmap == null || !bitmap.isMutable() || bitmap.isRecycled()
+                || isDisplayed(bitmap)) {
+            synchronized (this) {
+                rejectedCount++;
+            }
+            return false;
+        }
+        final int byteCount = bitmap.getAllocationByteCount();
+        synchronized (this) {
+            if (byteCount > maxSize || order.contains(bitmap)) {
+                rejectedCount++;
+                return false;
+            }
+            List<Bitmap> bitmaps = bySize.get(byteCount);
+            if (bitmaps == null) {
+                bitmaps = new ArrayList<Bitmap>();
+                bySize.put(byteCount, bitmaps);
+            }
+            bitmaps.add(bitmap);
+            order.add(bitmap);
+            size += byteCount;
+            putCount++;
+            trimToSize(maxSize);
+        }
+        return true;
+    }
+
+    /**
+     * 取出一个至少有{@code byteCount}字节的位图，没有时返回null。
+     */
+    public synchronized Bitmap get(int byteCount) {
+        requestCount++;
+        final Map.Entry<Integer, List<Bitmap>> entry = bySize.ceilingEntry(byteCount);
+        if (entry == null || entry.getKey() > (long) byteCount * MAX_SIZE_MULTIPLE) {
+            return null;
+        }
+        final List<Bitmap> bitmaps = entry.getValue();
+        final Bitmap bitmap = bitmaps.remove(bitmaps.size() - 1);
+        if (bitmaps.isEmpty()) {
+            bySize.remove(entry.getKey());
+        }
+        order.remove(bitmap);
+        size -= entry.getKey();
+        hitCount++;
+        reusedBytes += byteCount;
+        return bitmap;
+    }
+
+    /**
+     * 为解码设置可复用的位图。{@code options}中应已通过inJustDecodeBounds得到原图尺寸并设置好inSampleSize。
+     * 没有合适的位图时也设置inMutable，使解码结果以后可以放入池中。
+     */
+    public void addInBitmapOptions(BitmapFactory.Options options) {
+        options.inMutable = true;
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return;
+        }
+        final int sampleSize = Math.max(1, options.inSampleSize);
+        final int width = (options.outWidth + sampleSize - 1) / sampleSize;
+        final int height = (options.outHeight + sampleSize - 1) / sampleSize;
+        final Bitmap.Config config = options.inPreferredConfig != null
+                ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        final long byteCount = (long) width * height * bytesPerPixel(config);
+        if (byteCount > Integer.MAX_VALUE) {
+            return;
+        }
+        final Bitmap bitmap = get((int) byteCount);
+        if (bitmap != null) {
+            options.inBitmap = bitmap;
+        }
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+
+    /**
+     * 丢弃最早放入的位图，直到总字节数不超过{@code targetSize}。
+     */
+    public synchronized void trimToSize(long targetSize) {
+        final Iterator<Bitmap> it = order.iterator();
+        while (size > targetSize && it.hasNext()) {
+            final Bitmap bitmap = it.next();
+            it.remove();
+            final int byteCount = bitmap.getAllocationByteCount();
+            final List<Bitmap> bitmaps = bySize.get(byteCount);
+            if (bitmaps != null) {
+                bitmaps.remove(bitmap);
+                if (bitmaps.isEmpty()) {
+                    bySize.remove(byteCount);
+                }
+            }
+            size -= byteCount;
+            evictionCount++;
+        }
+    }
+
+    /**
+     * 清空位图池。
+     */
+    public void clear() {
+        trimToSize(0);
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    public long maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * 返回取出位图的命中率。
+     */
+    public synchronized float getHitRate() {
+        return requestCount == 0 ? 0f : (float) hitCount / requestCount;
+    }
+
+    /**
+     * 返回复用位图而避免的分配次数。
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * 返回复用位图而避免分配的字节数。
+     */
+    public synchronized long getReusedBytes() {
+        return reusedBytes;
+    }
+
+    public synchronized long getPutCount() {
+        return putCount;
+    }
+
+    /**
+     * 返回因不可变、已回收、仍在显示或过大而没有放入池中的位图数。
+     */
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return TAG + "[size=" + size + ", maxSize=" + maxSize + ", hitRate=" + getHitRate()
+                + ", reusedBytes=" + reusedBytes + "]";
+    }
+}
@@ -0,0 +1,473 @@
+package com.tools.imagecache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 并发的内存缓存，用于替换{@link android.support.v4.util.LruCache}，接口与其保持一致。
+ *
+ * <p>读操作不加锁：数据保存在一个{@link ConcurrentHashMap}中，get只把访问记录到key所在分段的
+ * 有界缓冲区，缓冲区满时丢弃记录。key按散列值分到多个分段，每个分段用自己的锁维护一个按访问顺序
+ * 排列的LinkedHashMap，写操作或缓冲区积累到一定数量时在分段锁内回放访问记录。
+ * 因此UI线程的get不会与加载线程的put竞争同一个监视器。
+ *
+ * <p>容量按所有分段的总大小计算。超出容量时轮流从各分段淘汰最久未访问的数据，
+ * 所以淘汰顺序是近似的LRU。
+ *
+ * <p>可以启用W-TinyLFU式的准入过滤（与{@link TinyLfuEvictionPolicy}相同）：新数据先进入分段内的LRU窗口，
+ * 所有窗口合计占容量的{@link #WINDOW_PERCENT}。需要淘汰且窗口超出预算时，用分段的{@link FrequencySketch}
+ * 比较窗口中最旧的数据（候选者）和主区最旧的数据（受害者）的访问频率（包括未命中的访问），
+ * 候选者更频繁时进入主区、淘汰受害者，否则淘汰候选者。快速滑过的大量只出现一次的图片只在窗口中短暂停留，
+ * 不会挤掉反复使用的图标。
+ *
+ * @param <K> key的类型
+ * @param <V> value的类型
+ */
+public class ConcurrentLruCache<K, V> {
+    /** 默认分段数 */
+    public static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+    /** 每个分段的访问记录缓冲区大小 */
+    private static final int READ_BUFFER_SIZE = 64;
+
+    /** 缓冲区中的访问记录达到该数量时尝试回放 */
+    private static final int READ_DRAIN_THRESHOLD = 32;
+
+    /** 启用准入过滤时窗口占容量的比例，至少能放下一屏正在显示的图片 */
+    private static final float WINDOW_PERCENT = 0.2f;
+
+    private final ConcurrentHashMap<K, Node<V>> map;
+    private final Segment<K, V>[] segments;
+    private final int segmentMask;
+    private final AtomicLong size = new AtomicLong();
+    /** 所有分段窗口中数据的总大小 */
+    private final AtomicLong windowSize = new AtomicLong();
+    private final AtomicInteger evictIndex = new AtomicInteger();
+    private volatile long maxSize;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong putCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final boolean admissionFilter;
+
+    /**
+     * @param maxSize 缓存的最大容量，单位由{@link #sizeOf}决定
+     */
+    public ConcurrentLruCache(long maxSize) {
+        this(maxSize, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * @param maxSize 缓存的最大容量，单位由{@link #sizeOf}决定
+     * @param concurrencyLevel 分段数，向上取为2的幂
+     */
+    public ConcurrentLruCache(long maxSize, int concurrencyLevel) {
+        this(maxSize, concurrencyLevel, 0);
+    }
+
+    /**
+     * @param maxSize 缓存的最大容量，单位由{@link #sizeOf}决定
+     * @param concurrencyLevel 分段数，向上取为2的幂
+     * @param expectedEntries 预计的数据个数，大于0时启用准入过滤并据此确定频率统计的大小
+     */
+    public ConcurrentLruCache(long maxSize, int concurrencyLevel, int expectedEntries) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (concurrencyLevel <= 0) {
+            throw new IllegalArgumentException("concurrencyLevel <= 0");
+        }
+        int segmentCount = 1;
+        while (segmentCount < concurrencyLevel) {
+            segmentCount <<= 1;
+        }
+        this.maxSize = maxSize;
+        this.map = new ConcurrentHashMap<K, Node<V>>(16, 0.75f, segmentCount);
+        this.segments = newSegmentArray(segmentCount);
+        this.admissionFilter = expectedEntries > 0;
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment<K, V>(admissionFilter
+                    ? new FrequencySketch(expectedEntries / segmentCount) : null);
+        }
+        this.segmentMask = segmentCount - 1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> Segment<K, V>[] newSegmentArray(int length) {
+        return (Segment<K, V>[]) new Segment<?, ?>[length];
+    }
+
+    private Segment<K, V> segmentFor(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return segments[h & segmentMask];
+    }
+
+    /**
+     * 返回key对应的value，不存在时返回null。不加锁。
+     */
+    public final V get(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        final Node<V> node = map.get(key);
+        if (node == null) {
+            missCount.incrementAndGet();
+            if (!admissionFilter) {
+                return null;
+            }
+        } else {
+            hitCount.incrementAndGet();
+        }
+        // 启用准入过滤时未命中的key也要记录频率
+        final Segment<K, V> segment = segmentFor(key);
+        if (segment.recordRead(key) && segment.tryLock()) {
+            try {
+                segment.drainReads();
+            } finally {
+                segment.unlock();
+            }
+        }
+        return node != null ? node.value : null;
+    }
+
+    /**
+     * 缓存value，并把它移到所在分段的队尾。
+     * @return key原来对应的value
+     */
+    public final V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        final Node<V> node = new Node<V>(value, safeSizeOf(key, value));
+        final Segment<K, V> segment = segmentFor(key);
+        final Node<V> previous;
+        segment.lock();
+        try {
+            segment.drainReads();
+            putCount.incrementAndGet();
+            previous = map.put(key, node);
+            if (admissionFilter) {
+                segment.sketch.increment(key);
+                if (segment.lru.containsKey(key)) {
+                    segment.lru.put(key, node);
+                } else {
+                    segment.window.put(key, node);
+                    windowSize.addAndGet(node.size - (previous != null ? previous.size : 0));
+                }
+            } else {
+                segment.lru.put(key, node);
+            }
+            size.addAndGet(node.size - (previous != null ? previous.size : 0));
+            if (admissionFilter) {
+                promoteWhileRoom(segment);
+            }
+        } finally {
+            segment.unlock();
+        }
+        if (previous != null) {
+            entryRemoved(false, key, previous.value, value);
+        }
+        trimToSize(maxSize);
+        return previous != null ? previous.value : null;
+    }
+
+    /**
+     * 移除key对应的value。
+     * @return 被移除的value
+     */
+    public final V remove(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        final Segment<K, V> segment = segmentFor(key);
+        final Node<V> previous;
+        segment.lock();
+        try {
+            previous = map.remove(key);
+            if (previous != null) {
+                segment.unlink(key, previous, windowSize);
+                size.addAndGet(-previous.size);
+            }
+        } finally {
+            segment.unlock();
+        }
+        if (previous == null) {
+            return null;
+        }
+        entryRemoved(false, key, previous.value, null);
+        return previous.value;
+    }
+
+    /**
+     * 轮流从各分段淘汰数据，直到总大小不超过{@code maxSize}。
+     * 未启用准入过滤时淘汰最久未访问的数据，否则按{@link #evictionVictim}选择。
+     * {@code maxSize}为-1时清空缓存，不比较访问频率，也不计入拒绝次数。
+     */
+    public void trimToSize(long maxSize) {
+        final boolean clearing = maxSize < 0;
+        int emptySegments = 0;
+        int emptyWindows = 0;
+        while (size.get() > maxSize && emptySegments < segments.length) {
+            final Segment<K, V> segment = segments[evictIndex.getAndIncrement() & segmentMask];
+            K key = null;
+            Node<V> node = null;
+            segment.lock();
+            try {
+                segment.drainReads();
+                // 窗口超出预算时跳过窗口为空的分段，让候选者和受害者比较，而不是直接淘汰主区的数据
+                if (!clearing && segment.window.isEmpty() && windowOverflow()
+                        && ++emptyWindows < segments.length) {
+                    continue;
+                }
+                emptyWindows = 0;
+                final Map.Entry<K, Node<V>> eldest;
+                if (clearing) {
+                    final Map.Entry<K, Node<V>> candidate = eldest(segment.window);
+                    eldest = candidate != null ? candidate : eldest(segment.lru);
+                } else {
+                    eldest = admissionFilter ? evictionVictim(segment) : eldest(segment.lru);
+                }
+                if (eldest != null) {
+                    key = eldest.getKey();
+                    node = eldest.getValue();
+                    segment.unlink(key, node, windowSize);
+                    map.remove(key, node);
+                    size.addAndGet(-node.size);
+                }
+            } finally {
+                segment.unlock();
+            }
+            if (node == null) {
+                emptySegments++;
+                continue;
+            }
+            emptySegments = 0;
+            evictionCount.incrementAndGet();
+            entryRemoved(true, key, node.value, null);
+        }
+    }
+
+    /**
+     * 选择分段中要淘汰的数据，必须持有分段锁。窗口未超出预算时淘汰主区最旧的数据；
+     * 否则比较候选者和受害者的访问频率，候选者更频繁时移入主区并淘汰受害者，否则淘汰候选者。
+     */
+    private Map.Entry<K, Node<V>> evictionVictim(Segment<K, V> segment) {
+        final Map.Entry<K, Node<V>> candidate = eldest(segment.window);
+        final Map.Entry<K, Node<V>> victim = eldest(segment.lru);
+        if (candidate == null) {
+            return victim;
+        }
+        if (victim == null) {
+            return candidate;
+        }
+        if (!windowOverflow()) {
+            return victim;
+        }
+        if (segment.sketch.frequency(candidate.getKey()) > segment.sketch.frequency(victim.getKey())) {
+            final Node<V> node = segment.window.remove(candidate.getKey());
+            windowSize.addAndGet(-node.size);
+            segment.lru.put(candidate.getKey(), node);
+            return victim;
+        }
+        rejectedCount.incrementAndGet();
+        return candidate;
+    }
+
+    /**
+     * 窗口超出预算而主区还有空间时，窗口中最旧的数据无需竞争直接进入主区，必须持有分段锁。
+     */
+    private void promoteWhileRoom(Segment<K, V> segment) {
+        final long mainMaxSize = maxSize - windowMaxSize();
+        Map.Entry<K, Node<V>> eldest;
+        while (windowOverflow() && (eldest = eldest(segment.window)) != null
+                && size.get() - windowSize.get() + eldest.getValue().size <= mainMaxSize) {
+            segment.window.remove(eldest.getKey());
+            windowSize.addAndGet(-eldest.getValue().size);
+            segment.lru.put(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    private long windowMaxSize() {
+        return (long) (maxSize * WINDOW_PERCENT);
+    }
+
+    private boolean windowOverflow() {
+        return admissionFilter && windowSize.get() > windowMaxSize();
+    }
+
+    private static <K, V> Map.Entry<K, Node<V>> eldest(LinkedHashMap<K, Node<V>> lru) {
+        final Iterator<Map.Entry<K, Node<V>>> it = lru.entrySet().iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+
+    /**
+     * 清空缓存，对每个value调用{@link #entryRemoved}。
+     */
+    public final void evictAll() {
+        trimToSize(-1);
+    }
+
+    /**
+     * 修改缓存的最大容量，容量变小时立即淘汰多出的数据。
+     */
+    public void resize(long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.maxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    private int safeSizeOf(K key, V value) {
+        final int result = sizeOf(key, value);
+        if (result < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return result;
+    }
+
+    /**
+     * 返回value的大小，默认为1，即按数量计算容量。
+     */
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    /**
+     * value被淘汰、移除或替换时调用，调用时不持有任何锁。
+     * @param evicted 是否因超出容量被淘汰
+     * @param newValue 替换旧value的新value，移除时为null
+     */
+    protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {
+    }
+
+    public final long size() {
+        return size.get();
+    }
+
+    public final long maxSize() {
+        return maxSize;
+    }
+
+    public final long hitCount() {
+        return hitCount.get();
+    }
+
+    public final long missCount() {
+        return missCount.get();
+    }
+
+    public final long putCount() {
+        return putCount.get();
+    }
+
+    public final long evictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * 返回准入过滤中因访问频率不如受害者而被淘汰的候选者个数。
+     */
+    public final long rejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * 返回所有key的快照。
+     */
+    public final List<K> keys() {
+        return new ArrayList<K>(map.keySet());
+    }
+
+    @Override
+    public final String toString() {
+        final long hits = hitCount.get();
+        final long accesses = hits + missCount.get();
+        final int hitPercent = accesses != 0 ? (int) (100 * hits / accesses) : 0;
+        return String.format("ConcurrentLruCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                maxSize, hits, missCount.get(), hitPercent);
+    }
+
+    private static final class Node<V> {
+        final V value;
+        final int size;
+
+        Node(V value, int size) {
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    /**
+     * 一个分段：按访问顺序排列的key和尚未回放的访问记录。
+     */
+    @SuppressWarnings("serial")
+    private static final class Segment<K, V> extends ReentrantLock {
+        /** 主区，未启用准入过滤时是唯一的LRU队列 */
+        final LinkedHashMap<K, Node<V>> lru = new LinkedHashMap<K, Node<V>>(16, 0.75f, true);
+        /** 新数据的LRU窗口，只在启用准入过滤时使用 */
+        final LinkedHashMap<K, Node<V>> window = new LinkedHashMap<K, Node<V>>(16, 0.75f, true);
+        /** 访问频率，未启用准入过滤时为null，必须持有分段锁 */
+        final FrequencySketch sketch;
+        private final AtomicReferenceArray<Object> readBuffer =
+                new AtomicReferenceArray<Object>(READ_BUFFER_SIZE);
+        private final AtomicInteger readCount = new AtomicInteger();
+
+        Segment(FrequencySketch sketch) {
+            this.sketch = sketch;
+        }
+
+        /**
+         * 记录一次访问，缓冲区满时丢弃。
+         * @return 是否应该回放访问记录
+         */
+        boolean recordRead(Object key) {
+            final int index = readCount.getAndIncrement();
+            if (index < READ_BUFFER_SIZE) {
+                readBuffer.lazySet(index, key);
+            }
+            return index + 1 >= READ_DRAIN_THRESHOLD;
+        }
+
+        /**
+         * 按记录把访问过的key移到队尾，必须持有分段锁。
+         */
+        void drainReads() {
+            final int count = Math.min(readCount.get(), READ_BUFFER_SIZE);
+            for (int i = 0; i < count; i++) {
+                final Object key = readBuffer.getAndSet(i, null);
+                if (key != null) {
+                    if (sketch != null) {
+                        sketch.increment(key);
+                        window.get(key);
+                    }
+                    lru.get(key);
+                }
+            }
+            readCount.set(0);
+        }
+
+        /**
+         * 从窗口或主区中移除key，必须持有分段锁。
+         */
+        void unlink(Object key, Node<V> node, AtomicLong windowSize) {
+            if (window.remove(key) != null) {
+                windowSize.addAndGet(-node.size);
+            } else {
+                lru.remove(key);
+            }
+        }
+    }
+}
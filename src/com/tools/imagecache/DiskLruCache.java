@@ -17,14 +17,13 @@
 package com.tools.imagecache;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -35,11 +34,15 @@ import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
@@ -108,10 +111,19 @@ import java.util.concurrent.TimeUnit;
  * responding appropriately.
  * 该类可以容忍一些I/O errors。如果文件丢失啦，相应的entry就会被drop。写cache时如果error发生，edit将失败。
  * 调用者应当相应的处理其它问题
+ *
+ * <p>When {@link Options#packThreshold} is positive, values no longer than
+ * the threshold are appended to shared "pack.N" segment files instead of
+ * getting a "key.N" file of their own; see PackStore. Removing such a value
+ * only marks its bytes dead, and the background thread compacts segments
+ * that are mostly dead.
+ * 设置packThreshold后，小value追加写入共享的段文件，删除只是逻辑删除，由后台线程压缩段文件。
  */
 public final class DiskLruCache implements Closeable {
     static final String JOURNAL_FILE = "journal";
     static final String JOURNAL_FILE_TMP = "journal.tmp";
+    static final String CHECKPOINT_FILE = "journal.ckpt";
+    static final String CHECKPOINT_FILE_TMP = "journal.ckpt.tmp";
     static final String MAGIC = "libcore.io.DiskLruCache";
     static final String VERSION_1 = "1";
     static final long ANY_SEQUENCE_NUMBER = -1;
@@ -121,7 +133,22 @@ public final class DiskLruCache implements Closeable {
     private static final String READ = "READ";
 
     private static final Charset UTF_8 = Charset.forName("UTF-8");
-    private static final int IO_BUFFER_SIZE = 8 * 1024;
+    static final int IO_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * {@link Snapshot#getByteBuffer} maps values of at least this many bytes;
+     * for smaller values a single read is cheaper than setting up a mapping.
+     */
+    public static final int MIN_MAP_SIZE = 32 * 1024;
+
+    /** 淘汰最久未使用的entry */
+    public static final int EVICTION_LRU = 0;
+    /** 分段LRU，见{@link SlruEvictionPolicy} */
+    public static final int EVICTION_SLRU = 1;
+    /** 按访问频率决定是否接纳新entry的W-TinyLFU，见{@link TinyLfuEvictionPolicy} */
+    public static final int EVICTION_TINY_LFU = 2;
+    /** 按字节数自适应调整新旧entry比例的ARC，见{@link ArcEvictionPolicy} */
+    public static final int EVICTION_ARC = 3;
 
     /*
      * This cache uses a journal file named "journal". A typical journal file
@@ -171,20 +198,49 @@ public final class DiskLruCache implements Closeable {
      * it exists when the cache is opened.
      * 日志文件在cache操作发生时添加，日志可能O尔删除的冗余行来压缩。一个临时的名字为journal.tmp的文件将被使用
      * 在压缩期间。当cache被opened的时候文件应当被删除。
+     *
+     * The text format above is only read to migrate existing caches. The cache
+     * now writes the same records in the fixed-width binary format described in
+     * BinaryJournal: a one byte opcode, the 16 byte key digest and, for CLEAN,
+     * varint value lengths. A text journal found on open is replayed once and
+     * rewritten in the binary format.
+     * 上面的文本格式只用于迁移旧的缓存，新的日志使用BinaryJournal中描述的二进制定长记录格式。
+     *
+     * Every CHECKPOINT_INTERVAL_BYTES of journal the background thread writes
+     * "journal.ckpt", a compact image of all entries in LRU order together with
+     * the journal offset it reflects. open() loads the checkpoint and replays
+     * only the journal records after that offset. Rebuilding the journal
+     * deletes the checkpoint, and a checkpoint that doesn't match the journal
+     * is ignored.
+     * 检查点保存全部entry的镜像和对应的日志偏移，打开缓存时只需回放偏移之后的日志。
      */
 
     private final File directory;
     private final File journalFile;
     private final File journalFileTmp;
+    private final File checkpointFile;
+    private final File checkpointFileTmp;
     private final int appVersion;
     private final long maxSize;
     private final int valueCount;
+    private final int packThreshold;
+    private final PackStore packStore;
+    /** null表示按lruEntries的访问顺序淘汰 */
+    private final EvictionPolicy evictionPolicy;
+    /** 与其他缓存共享的容量预算，null表示只受maxSize限制 */
+    private final SharedBudget budget;
     private long size = 0;
-    private Writer journalWriter;
+    private BinaryJournal.Writer journalWriter;
     private final LinkedHashMap<String, Entry> lruEntries
             = new LinkedHashMap<String, Entry>(0, 0.75f, true);
     private int redundantOpCount;
 
+    /**
+     * The journal offset covered by the last checkpoint or journal rebuild.
+     * Records after it have to be replayed on open.
+     */
+    private long compactJournalOffset;
+
     /**
      * To differentiate between old and current snapshots, each entry is given
      * a sequence number each time an edit is committed. A snapshot is stale if
@@ -298,22 +354,53 @@ public final class DiskLruCache implements Closeable {
                     return null; // closed
                 }
                 trimToSize();
+                if (packStore.compactionRequired()) {
+                    compactPacks();
+                }
                 if (journalRebuildRequired()) {
                     rebuildJournal();
                     redundantOpCount = 0;
+                } else if (checkpointRequired()) {
+                    writeCheckpoint();
                 }
             }
             return null;
         }
     };
 
-    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
+    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize,
+            Options options, SharedBudget budget) {
         this.directory = directory;
         this.appVersion = appVersion;
         this.journalFile = new File(directory, JOURNAL_FILE);
         this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+        this.checkpointFile = new File(directory, CHECKPOINT_FILE);
+        this.checkpointFileTmp = new File(directory, CHECKPOINT_FILE_TMP);
         this.valueCount = valueCount;
         this.maxSize = maxSize;
+        this.packThreshold = options.packThreshold;
+        this.packStore = new PackStore(directory);
+        this.evictionPolicy = newEvictionPolicy(options, maxSize);
+        this.budget = budget;
+    }
+
+    private static EvictionPolicy newEvictionPolicy(Options options, long maxSize) {
+        if (options.evictionPolicyFactory != null) {
+            return options.evictionPolicyFactory.create(maxSize);
+        }
+        switch (options.evictionPolicy) {
+            case EVICTION_LRU:
+                return null;
+            case EVICTION_SLRU:
+                return new SlruEvictionPolicy(maxSize);
+            case EVICTION_TINY_LFU:
+                return new TinyLfuEvictionPolicy(maxSize);
+            case EVICTION_ARC:
+                return new ArcEvictionPolicy(maxSize);
+            default:
+                throw new IllegalArgumentException("unknown eviction policy: "
+                        + options.evictionPolicy);
+        }
     }
 
     /**
@@ -328,6 +415,33 @@ public final class DiskLruCache implements Closeable {
      */
     public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
             throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, new Options());
+    }
+
+    /**
+     * Opens the cache in {@code directory} with the given options, creating a
+     * cache if none exists there.
+     *
+     * @param directory a writable directory
+     * @param appVersion
+     * @param valueCount the number of values per cache entry. Must be positive.
+     * @param maxSize the maximum number of bytes this cache should use to store
+     * @param options 存储选项
+     * @throws IOException if reading or writing the cache directory fails
+     */
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+            Options options) throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, options, null);
+    }
+
+    /**
+     * Opens the cache in {@code directory} as a member of {@code budget}. The
+     * budget is told about every change of the cache's size, including the
+     * size of the entries found on open, and is expected to trim the cache
+     * with {@link #evictOne()}.
+     */
+    static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+            Options options, SharedBudget budget) throws IOException {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
@@ -336,13 +450,29 @@ public final class DiskLruCache implements Closeable {
         }
 
         // prefer to pick up where we left off
-        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, options,
+                budget);
         if (cache.journalFile.exists()) {
             try {
-                cache.readJournal();
-                cache.processJournal();
-                cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true),
-                        IO_BUFFER_SIZE);
+                if (BinaryJournal.isBinary(cache.journalFile)) {
+                    cache.readBinaryJournal();
+                    cache.processJournal();
+                    cache.loadPackStore();
+                    cache.journalWriter = new BinaryJournal.Writer(cache.journalFile, true,
+                            valueCount);
+                    if (cache.checkpointRequired()) {
+                        cache.executorService.submit(cache.cleanupCallable);
+                    }
+                } else {
+                    // migrate a "libcore.io.DiskLruCache" v1 text journal
+                    cache.readJournal();
+                    cache.migrateKeys();
+                    cache.processJournal();
+                    cache.rebuildJournal();
+                }
+                if (budget != null) {
+                    budget.onSizeChanged(cache.size);
+                }
                 return cache;
             } catch (IOException journalIsCorrupt) {
 //                System.logW("DiskLruCache " + directory + " is corrupt: "
@@ -353,7 +483,8 @@ public final class DiskLruCache implements Closeable {
 
         // create a new empty cache
         directory.mkdirs();
-        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, options,
+                budget);
         cache.rebuildJournal();
         return cache;
     }
@@ -418,18 +549,250 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
+    private void readBinaryJournal() throws IOException {
+        BinaryJournal.Reader reader = new BinaryJournal.Reader(journalFile, valueCount);
+        long validLength;
+        try {
+            reader.readHeader(appVersion);
+            final long checkpointOffset = readCheckpoint();
+            if (checkpointOffset > 0) {
+                reader.seek(checkpointOffset);
+            }
+            while (reader.next()) {
+                readJournalRecord(reader.op, reader.key, reader.lengths, reader.locations);
+            }
+            validLength = reader.validLength();
+        } finally {
+            closeQuietly(reader);
+        }
+        if (validLength < journalFile.length()) {
+            // drop a record that was only partially written
+            BinaryJournal.truncate(journalFile, validLength);
+        }
+    }
+
+    /**
+     * Loads the entries of the checkpoint file, if there is a valid one.
+     *
+     * @return the journal offset to resume replaying from, or 0 to replay the
+     *     whole journal.
+     */
+    private long readCheckpoint() throws IOException {
+        if (!checkpointFile.exists()) {
+            return 0;
+        }
+        BinaryJournal.Reader reader = new BinaryJournal.Reader(checkpointFile, valueCount);
+        try {
+            reader.readCheckpointHeader(appVersion);
+            final long offset = reader.checkpointJournalOffset;
+            if (offset < BinaryJournal.HEADER_SIZE || offset > journalFile.length()) {
+                throw new IOException("checkpoint doesn't match journal: " + offset);
+            }
+            for (int i = 0; i < reader.checkpointEntryCount; i++) {
+                reader.nextCheckpointEntry();
+                Entry entry = new Entry(reader.key);
+                entry.readable = (reader.op & BinaryJournal.FLAG_READABLE) != 0;
+                if ((reader.op & BinaryJournal.FLAG_DIRTY) != 0) {
+                    entry.currentEditor = new Editor(entry);
+                }
+                entry.sequenceNumber = reader.sequenceNumber;
+                System.arraycopy(reader.lengths, 0, entry.lengths, 0, valueCount);
+                System.arraycopy(reader.locations, 0, entry.locations, 0, valueCount);
+                lruEntries.put(entry.key, entry);
+            }
+            nextSequenceNumber = reader.checkpointSequenceNumber;
+            compactJournalOffset = offset;
+            return offset;
+        } catch (IOException checkpointIsCorrupt) {
+            lruEntries.clear();
+            nextSequenceNumber = 0;
+            deleteIfExists(checkpointFile);
+            return 0;
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Writes a checkpoint of every entry and the journal offset it reflects.
+     */
+    private void writeCheckpoint() throws IOException {
+        journalWriter.flush();
+        final long offset = journalWriter.position();
+        BinaryJournal.Writer writer = new BinaryJournal.Writer(checkpointFileTmp, false, valueCount);
+        try {
+            writer.writeCheckpointHeader(appVersion, valueCount, offset, nextSequenceNumber,
+                    lruEntries.size());
+            for (Entry entry : lruEntries.values()) {
+                byte flags = 0;
+                if (entry.readable) {
+                    flags |= BinaryJournal.FLAG_READABLE;
+                }
+                if (entry.currentEditor != null) {
+                    flags |= BinaryJournal.FLAG_DIRTY;
+                }
+                if (entry.isPacked()) {
+                    flags |= BinaryJournal.FLAG_PACKED;
+                }
+                writer.writeCheckpointEntry(flags, entry.key, entry.sequenceNumber, entry.lengths,
+                        entry.locations);
+            }
+        } finally {
+            writer.close();
+        }
+        if (!checkpointFileTmp.renameTo(checkpointFile)) {
+            throw new IOException("failed to rename " + checkpointFileTmp);
+        }
+        compactJournalOffset = offset;
+    }
+
+    /**
+     * We write a checkpoint once this many journal bytes would otherwise have
+     * to be replayed on open.
+     */
+    private boolean checkpointRequired() {
+        final long CHECKPOINT_INTERVAL_BYTES = 256 * 1024;
+        return journalWriter.position() - compactJournalOffset >= CHECKPOINT_INTERVAL_BYTES;
+    }
+
+    private void readJournalRecord(byte op, String key, long[] lengths, long[] locations)
+            throws IOException {
+        if (op == BinaryJournal.OP_REMOVE) {
+            lruEntries.remove(key);
+            return;
+        }
+
+        Entry entry = lruEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            lruEntries.put(key, entry);
+        }
+
+        if (op == BinaryJournal.OP_CLEAN || op == BinaryJournal.OP_PACKED) {
+            entry.readable = true;
+            entry.currentEditor = null;
+            System.arraycopy(lengths, 0, entry.lengths, 0, valueCount);
+            System.arraycopy(locations, 0, entry.locations, 0, valueCount);
+        } else if (op == BinaryJournal.OP_DIRTY) {
+            entry.currentEditor = new Editor(entry);
+        } else if (op == BinaryJournal.OP_READ) {
+            // this work was already done by calling lruEntries.get()
+        } else {
+            throw new IOException("unexpected journal record: " + op);
+        }
+    }
+
+    /**
+     * Renames the entries of a text journal whose keys aren't in the canonical
+     * form used by the binary journal. Incomplete entries are dropped.
+     */
+    private void migrateKeys() throws IOException {
+        final LinkedHashMap<String, Entry> migrated
+                = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+        for (Entry entry : lruEntries.values()) {
+            final String key = BinaryJournal.canonicalKey(entry.key);
+            if (key.equals(entry.key)) {
+                migrated.put(key, entry);
+                continue;
+            }
+            final boolean complete = entry.readable && entry.currentEditor == null;
+            final Entry renamed = new Entry(key);
+            for (int i = 0; i < valueCount; i++) {
+                deleteIfExists(entry.getDirtyFile(i));
+                if (complete && !entry.getCleanFile(i).renameTo(renamed.getCleanFile(i))) {
+                    throw new IOException("failed to rename " + entry.getCleanFile(i));
+                }
+                deleteIfExists(entry.getCleanFile(i));
+            }
+            if (complete) {
+                renamed.readable = true;
+                System.arraycopy(entry.lengths, 0, renamed.lengths, 0, valueCount);
+                migrated.put(key, renamed);
+            }
+        }
+        lruEntries.clear();
+        lruEntries.putAll(migrated);
+    }
+
+    /**
+     * Computes the live bytes of every pack segment and opens the pack store.
+     */
+    private void loadPackStore() throws IOException {
+        final Map<Integer, Long> live = new HashMap<Integer, Long>();
+        for (Entry entry : lruEntries.values()) {
+            for (int i = 0; i < valueCount; i++) {
+                if (entry.locations[i] != PackStore.NO_LOCATION) {
+                    final int segmentId = PackStore.segmentId(entry.locations[i]);
+                    final Long liveBytes = live.get(segmentId);
+                    live.put(segmentId,
+                            (liveBytes != null ? liveBytes : 0L) + entry.lengths[i]);
+                }
+            }
+        }
+        packStore.load(live);
+    }
+
+    /**
+     * Copies the live values out of mostly dead pack segments and deletes
+     * those segments.
+     */
+    private void compactPacks() throws IOException {
+        final List<Integer> segmentIds = packStore.segmentsToCompact();
+        if (segmentIds.isEmpty()) {
+            return;
+        }
+        for (Entry entry : lruEntries.values()) {
+            boolean moved = false;
+            for (int i = 0; i < valueCount; i++) {
+                final long location = entry.locations[i];
+                if (location != PackStore.NO_LOCATION
+                        && segmentIds.contains(PackStore.segmentId(location))) {
+                    final byte[] data = packStore.read(location, (int) entry.lengths[i]);
+                    entry.locations[i] = packStore.append(data, 0, data.length);
+                    moved = true;
+                }
+            }
+            if (moved && entry.readable) {
+                redundantOpCount++;
+                writeEntryRecord(journalWriter, entry);
+                if (entry.currentEditor != null) {
+                    journalWriter.writeRecord(BinaryJournal.OP_DIRTY, entry.key);
+                }
+            }
+        }
+        // the new locations must reach the journal before the old segments go away
+        journalWriter.flush();
+        for (Integer segmentId : segmentIds) {
+            packStore.deleteSegment(segmentId);
+        }
+    }
+
+    private static void writeEntryRecord(BinaryJournal.Writer writer, Entry entry)
+            throws IOException {
+        if (entry.isPacked()) {
+            writer.writePacked(entry.key, entry.lengths, entry.locations);
+        } else {
+            writer.writeClean(entry.key, entry.lengths);
+        }
+    }
+
     /**
      * Computes the initial size and collects garbage as a part of opening the
      * cache. Dirty entries are assumed to be inconsistent and will be deleted.
      */
     private void processJournal() throws IOException {
         deleteIfExists(journalFileTmp);
+        deleteIfExists(checkpointFileTmp);
         for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
             Entry entry = i.next();
             if (entry.currentEditor == null) {
                 for (int t = 0; t < valueCount; t++) {
                     size += entry.lengths[t];
                 }
+                touch(entry);
+                if (evictionPolicy != null) {
+                    evictionPolicy.onWrite(entry.key, entry.totalLength());
+                }
             } else {
                 entry.currentEditor = null;
                 for (int t = 0; t < valueCount; t++) {
@@ -450,28 +813,23 @@ public final class DiskLruCache implements Closeable {
             journalWriter.close();
         }
 
-        Writer writer = new BufferedWriter(new FileWriter(journalFileTmp), IO_BUFFER_SIZE);
-        writer.write(MAGIC);
-        writer.write("\n");
-        writer.write(VERSION_1);
-        writer.write("\n");
-        writer.write(Integer.toString(appVersion));
-        writer.write("\n");
-        writer.write(Integer.toString(valueCount));
-        writer.write("\n");
-        writer.write("\n");
+        BinaryJournal.Writer writer = new BinaryJournal.Writer(journalFileTmp, false, valueCount);
+        writer.writeHeader(appVersion, valueCount);
 
         for (Entry entry : lruEntries.values()) {
             if (entry.currentEditor != null) {
-                writer.write(DIRTY + ' ' + entry.key + '\n');
+                writer.writeRecord(BinaryJournal.OP_DIRTY, entry.key);
             } else {
-                writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+                writeEntryRecord(writer, entry);
             }
         }
 
         writer.close();
+        // the checkpoint refers to offsets in the old journal
+        deleteIfExists(checkpointFile);
         journalFileTmp.renameTo(journalFile);
-        journalWriter = new BufferedWriter(new FileWriter(journalFile, true), IO_BUFFER_SIZE);
+        journalWriter = new BinaryJournal.Writer(journalFile, true, valueCount);
+        compactJournalOffset = journalWriter.position();
     }
 
     private static void deleteIfExists(File file) throws IOException {
@@ -495,12 +853,12 @@ public final class DiskLruCache implements Closeable {
     public synchronized Snapshot get(String key) throws IOException {
         checkNotClosed();
         validateKey(key);
+        key = BinaryJournal.canonicalKey(key);
         Entry entry = lruEntries.get(key);
-        if (entry == null) {
-            return null;
-        }
-
-        if (!entry.readable) {
+        if (entry == null || !entry.readable) {
+            if (evictionPolicy != null) {
+                evictionPolicy.onMiss(key);
+            }
             return null;
         }
 
@@ -512,20 +870,28 @@ public final class DiskLruCache implements Closeable {
         InputStream[] ins = new InputStream[valueCount];
         try {
             for (int i = 0; i < valueCount; i++) {
-                ins[i] = new FileInputStream(entry.getCleanFile(i));
+                ins[i] = entry.newInputStream(i);
             }
         } catch (FileNotFoundException e) {
             // a file must have been deleted manually!
+            for (InputStream in : ins) {
+                closeQuietly(in);
+            }
             return null;
         }
 
         redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
-        if (journalRebuildRequired()) {
+        journalWriter.writeRecord(BinaryJournal.OP_READ, key);
+        touch(entry);
+        if (evictionPolicy != null) {
+            evictionPolicy.onRead(key);
+        }
+        if (journalRebuildRequired() || checkpointRequired()) {
             executorService.submit(cleanupCallable);
         }
 
-        return new Snapshot(key, entry.sequenceNumber, ins);
+        return new Snapshot(key, entry.sequenceNumber, ins, entry.lengths.clone(),
+                entry.locations.clone());
     }
 
     /**
@@ -539,6 +905,7 @@ public final class DiskLruCache implements Closeable {
     private synchronized Editor edit(String key, long expectedSequenceNumber) throws IOException {
         checkNotClosed();
         validateKey(key);
+        key = BinaryJournal.canonicalKey(key);
         Entry entry = lruEntries.get(key);
         if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
                 && (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
@@ -555,7 +922,7 @@ public final class DiskLruCache implements Closeable {
         entry.currentEditor = editor;
 
         // flush the journal before creating files to prevent file leaks
-        journalWriter.write(DIRTY + ' ' + key + '\n');
+        journalWriter.writeRecord(BinaryJournal.OP_DIRTY, key);
         journalWriter.flush();
         return editor;
     }
@@ -589,11 +956,12 @@ public final class DiskLruCache implements Closeable {
         if (entry.currentEditor != editor) {
             throw new IllegalStateException();
         }
+        final long oldSize = size;
 
         // if this edit is creating the entry for the first time, every index must have a value
         if (success && !entry.readable) {
             for (int i = 0; i < valueCount; i++) {
-                if (!entry.getDirtyFile(i).exists()) {
+                if (!editor.hasValue(i)) {
                     editor.abort();
                     throw new IllegalStateException("edit didn't create file " + i);
                 }
@@ -602,11 +970,30 @@ public final class DiskLruCache implements Closeable {
 
         for (int i = 0; i < valueCount; i++) {
             File dirty = entry.getDirtyFile(i);
+            PackableOutputStream buffered = editor.buffers[i];
             if (success) {
-                if (dirty.exists()) {
-                    File clean = entry.getCleanFile(i);
-                    dirty.renameTo(clean);
+                if (buffered != null && !buffered.isSpilled()) {
+                    // small value: append it to the active pack segment
+                    long oldLength = entry.lengths[i];
+                    releaseValue(entry, i);
+                    if (buffered.count > 0) {
+                        entry.locations[i] = packStore.append(buffered.buffer, 0, buffered.count);
+                    }
+                    entry.lengths[i] = buffered.count;
+                    size = size - oldLength + buffered.count;
+                } else if (dirty.exists()) {
                     long oldLength = entry.lengths[i];
+                    if (entry.locations[i] != PackStore.NO_LOCATION) {
+                        releaseValue(entry, i);
+                    }
+                    File clean = entry.getCleanFile(i);
+                    if (dirty.length() == 0) {
+                        // empty values are kept in the journal only
+                        deleteIfExists(dirty);
+                        deleteIfExists(clean);
+                    } else {
+                        dirty.renameTo(clean);
+                    }
                     long newLength = clean.length();
                     entry.lengths[i] = newLength;
                     size = size - oldLength + newLength;
@@ -620,18 +1007,55 @@ public final class DiskLruCache implements Closeable {
         entry.currentEditor = null;
         if (entry.readable | success) {
             entry.readable = true;
-            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+            writeEntryRecord(journalWriter, entry);
             if (success) {
                 entry.sequenceNumber = nextSequenceNumber++;
+                touch(entry);
+                if (evictionPolicy != null) {
+                    evictionPolicy.onWrite(entry.key, entry.totalLength());
+                }
             }
         } else {
+            // release values appended by a commit that failed half way
+            for (int i = 0; i < valueCount; i++) {
+                if (entry.locations[i] != PackStore.NO_LOCATION) {
+                    releaseValue(entry, i);
+                }
+            }
             lruEntries.remove(entry.key);
-            journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+            journalWriter.writeRecord(BinaryJournal.OP_REMOVE, entry.key);
         }
 
-        if (size > maxSize || journalRebuildRequired()) {
+        if (size > maxSize || journalRebuildRequired() || checkpointRequired()
+                || packStore.compactionRequired()) {
             executorService.submit(cleanupCallable);
         }
+        if (budget != null && size != oldSize) {
+            budget.onSizeChanged(size - oldSize);
+        }
+    }
+
+    /**
+     * Stamps {@code entry} with the budget's clock so that the budget can
+     * compare the ages of victims in different caches.
+     */
+    private void touch(Entry entry) {
+        if (budget != null) {
+            entry.accessTime = budget.nextAccessTime();
+        }
+    }
+
+    /**
+     * Drops the current value at {@code index}: a packed value is marked dead
+     * and a value file is deleted.
+     */
+    private void releaseValue(Entry entry, int index) throws IOException {
+        if (entry.locations[index] != PackStore.NO_LOCATION) {
+            packStore.release(entry.locations[index], entry.lengths[index]);
+            entry.locations[index] = PackStore.NO_LOCATION;
+        } else {
+            deleteIfExists(entry.getCleanFile(index));
+        }
     }
 
     /**
@@ -653,27 +1077,41 @@ public final class DiskLruCache implements Closeable {
     public synchronized boolean remove(String key) throws IOException {
         checkNotClosed();
         validateKey(key);
+        key = BinaryJournal.canonicalKey(key);
         Entry entry = lruEntries.get(key);
         if (entry == null || entry.currentEditor != null) {
             return false;
         }
 
+        final long oldSize = size;
         for (int i = 0; i < valueCount; i++) {
-            File file = entry.getCleanFile(i);
-            if (!file.delete()) {
-                throw new IOException("failed to delete " + file);
+            if (entry.locations[i] != PackStore.NO_LOCATION) {
+                packStore.release(entry.locations[i], entry.lengths[i]);
+                entry.locations[i] = PackStore.NO_LOCATION;
+            } else {
+                File file = entry.getCleanFile(i);
+                // an empty value may have no file
+                if (!file.delete() && entry.lengths[i] != 0) {
+                    throw new IOException("failed to delete " + file);
+                }
             }
             size -= entry.lengths[i];
             entry.lengths[i] = 0;
         }
 
         redundantOpCount++;
-        journalWriter.append(REMOVE + ' ' + key + '\n');
+        journalWriter.writeRecord(BinaryJournal.OP_REMOVE, key);
         lruEntries.remove(key);
+        if (evictionPolicy != null) {
+            evictionPolicy.onRemove(key);
+        }
 
-        if (journalRebuildRequired()) {
+        if (journalRebuildRequired() || checkpointRequired() || packStore.compactionRequired()) {
             executorService.submit(cleanupCallable);
         }
+        if (budget != null && size != oldSize) {
+            budget.onSizeChanged(size - oldSize);
+        }
 
         return true;
     }
@@ -712,17 +1150,91 @@ public final class DiskLruCache implements Closeable {
                 entry.currentEditor.abort();
             }
         }
-        trimToSize();
-        journalWriter.close();
-        journalWriter = null;
+        try {
+            trimToSize();
+            if (checkpointRequired()) {
+                writeCheckpoint();
+            }
+        } finally {
+            journalWriter.close();
+            journalWriter = null;
+            packStore.close();
+        }
     }
 
     private void trimToSize() throws IOException {
         while (size > maxSize) {
-//            Map.Entry<String, Entry> toEvict = lruEntries.eldest();
-            final Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-            remove(toEvict.getKey());
+            final String toEvict = nextVictim();
+            if (toEvict == null) {
+                break; // every entry is being edited; trim again after an edit completes
+            }
+            remove(toEvict);
+            if (evictionPolicy != null) {
+                evictionPolicy.onEvict(toEvict);
+            }
+        }
+    }
+
+    /**
+     * Returns the access time of the least recently used entry that isn't
+     * being edited, or {@link Long#MAX_VALUE} if the cache is closed or has no
+     * removable entry. Without an eviction policy this is the entry
+     * {@link #evictOne()} evicts.
+     */
+    synchronized long eldestAccessTime() {
+        if (journalWriter == null) {
+            return Long.MAX_VALUE;
+        }
+        // iterating doesn't reorder the access-ordered map
+        for (Entry entry : lruEntries.values()) {
+            if (entry.currentEditor == null) {
+                return entry.accessTime;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Evicts the next victim regardless of maxSize.
+     *
+     * @return false if the cache is closed or has no removable entry.
+     */
+    synchronized boolean evictOne() throws IOException {
+        if (journalWriter == null) {
+            return false;
+        }
+        final String toEvict = nextVictim();
+        if (toEvict == null) {
+            return false;
+        }
+        remove(toEvict);
+        if (evictionPolicy != null) {
+            evictionPolicy.onEvict(toEvict);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the key of the next entry to evict, skipping entries that are
+     * being edited, or null if no entry can be removed.
+     */
+    private String nextVictim() {
+        if (evictionPolicy == null) {
+            for (Entry entry : lruEntries.values()) {
+                if (entry.currentEditor == null) {
+                    return entry.key;
+                }
+            }
+            return null;
         }
+        for (Iterator<String> i = evictionPolicy.evictionOrder(); i.hasNext(); ) {
+            final String key = i.next();
+            final Entry entry = lruEntries.get(key);
+            if (entry != null && entry.currentEditor == null) {
+                return key;
+            }
+        }
+        return null;
     }
 
     /**
@@ -753,11 +1265,16 @@ public final class DiskLruCache implements Closeable {
         private final String key;
         private final long sequenceNumber;
         private final InputStream[] ins;
+        private final long[] lengths;
+        private final long[] locations;
 
-        private Snapshot(String key, long sequenceNumber, InputStream[] ins) {
+        private Snapshot(String key, long sequenceNumber, InputStream[] ins, long[] lengths,
+                long[] locations) {
             this.key = key;
             this.sequenceNumber = sequenceNumber;
             this.ins = ins;
+            this.lengths = lengths;
+            this.locations = locations;
         }
 
         /**
@@ -776,6 +1293,97 @@ public final class DiskLruCache implements Closeable {
             return ins[index];
         }
 
+        /**
+         * Returns the byte length of the value for {@code index}.
+         */
+        public long getLength(int index) {
+            return lengths[index];
+        }
+
+        /**
+         * Returns the channel of the file holding the value for {@code index},
+         * or null if the value isn't backed by a file. The value starts at
+         * {@link #getOffset} in this channel and is {@link #getLength} bytes
+         * long; a packed value shares its channel with other values. The
+         * channel is closed together with this snapshot.
+         */
+        public FileChannel getChannel(int index) {
+            final InputStream in = ins[index];
+            if (in instanceof FileInputStream) {
+                return ((FileInputStream) in).getChannel();
+            }
+            return PackStore.getChannel(in);
+        }
+
+        /**
+         * Returns the position of the value for {@code index} in
+         * {@link #getChannel}.
+         */
+        public long getOffset(int index) {
+            return locations[index] != PackStore.NO_LOCATION
+                    ? PackStore.offset(locations[index]) : 0;
+        }
+
+        /**
+         * Returns the value for {@code index} as a buffer.
+         *
+         * <p>Values of at least {@link DiskLruCache#MIN_MAP_SIZE} bytes are returned as a
+         * read-only memory mapping that stays valid after the snapshot is
+         * closed. Smaller values, or values that can't be mapped, are returned
+         * as by {@link #getBytes}. Callers that copy the value into a byte
+         * array anyway, such as bitmap decoding, should use {@link #getBytes}.
+         */
+        public ByteBuffer getByteBuffer(int index) throws IOException {
+            final long length = checkBufferLength(index);
+            final FileChannel channel = getChannel(index);
+            if (channel != null && length >= MIN_MAP_SIZE) {
+                try {
+                    return channel.map(FileChannel.MapMode.READ_ONLY, getOffset(index), length);
+                } catch (IOException e) {
+                    // fall back to reading into a heap buffer
+                }
+            }
+            return ByteBuffer.wrap(getBytes(index));
+        }
+
+        /**
+         * Reads the value for {@code index} into a new array. A value backed
+         * by a file is read with positional reads, which don't move the stream
+         * returned by {@link #getInputStream}; other values are read from that
+         * stream.
+         */
+        public byte[] getBytes(int index) throws IOException {
+            final ByteBuffer buffer = ByteBuffer.allocate((int) checkBufferLength(index));
+            final FileChannel channel = getChannel(index);
+            if (channel != null) {
+                final long offset = getOffset(index);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, offset + buffer.position()) == -1) {
+                        throw new EOFException();
+                    }
+                }
+            } else {
+                final InputStream in = ins[index];
+                while (buffer.hasRemaining()) {
+                    final int read = in.read(buffer.array(), buffer.position(),
+                            buffer.remaining());
+                    if (read == -1) {
+                        throw new EOFException();
+                    }
+                    buffer.position(buffer.position() + read);
+                }
+            }
+            return buffer.array();
+        }
+
+        private long checkBufferLength(int index) throws IOException {
+            final long length = lengths[index];
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("value too large to buffer: " + length);
+            }
+            return length;
+        }
+
         /**
          * Returns the string value for {@code index}.
          */
@@ -795,6 +1403,7 @@ public final class DiskLruCache implements Closeable {
      */
     public final class Editor {
         private final Entry entry;
+        private final PackableOutputStream[] buffers = new PackableOutputStream[valueCount];
         private boolean hasErrors;
 
         private Editor(Entry entry) {
@@ -813,7 +1422,7 @@ public final class DiskLruCache implements Closeable {
                 if (!entry.readable) {
                     return null;
                 }
-                return new FileInputStream(entry.getCleanFile(index));
+                return entry.newInputStream(index);
             }
         }
 
@@ -838,10 +1447,20 @@ public final class DiskLruCache implements Closeable {
                 if (entry.currentEditor != this) {
                     throw new IllegalStateException();
                 }
+                if (packThreshold > 0) {
+                    deleteIfExists(entry.getDirtyFile(index));
+                    buffers[index] = new PackableOutputStream(entry.getDirtyFile(index),
+                            packThreshold);
+                    return new FaultHidingOutputStream(buffers[index]);
+                }
                 return new FaultHidingOutputStream(new FileOutputStream(entry.getDirtyFile(index)));
             }
         }
 
+        private boolean hasValue(int index) {
+            return buffers[index] != null || entry.getDirtyFile(index).exists();
+        }
+
         /**
          * Sets the value at {@code index} to {@code value}.
          */
@@ -921,6 +1540,9 @@ public final class DiskLruCache implements Closeable {
         /** Lengths of this entry's files. */
         private final long[] lengths;
 
+        /** Pack locations of this entry's values, or NO_LOCATION for value files. */
+        private final long[] locations;
+
         /** True if this entry has ever been published */
         private boolean readable;
 
@@ -930,17 +1552,42 @@ public final class DiskLruCache implements Closeable {
         /** The sequence number of the most recently committed edit to this entry. */
         private long sequenceNumber;
 
+        /** The budget's clock at the last read or commit, 0 without a budget. */
+        private long accessTime;
+
         private Entry(String key) {
             this.key = key;
             this.lengths = new long[valueCount];
+            this.locations = new long[valueCount];
+            Arrays.fill(locations, PackStore.NO_LOCATION);
+        }
+
+        private long totalLength() {
+            long total = 0;
+            for (long length : lengths) {
+                total += length;
+            }
+            return total;
+        }
+
+        private boolean isPacked() {
+            for (long location : locations) {
+                if (location != PackStore.NO_LOCATION) {
+                    return true;
+                }
+            }
+            return false;
         }
 
-        public String getLengths() throws IOException {
-            StringBuilder result = new StringBuilder();
-            for (long size : lengths) {
-                result.append(' ').append(size);
+        private InputStream newInputStream(int i) throws IOException {
+            if (lengths[i] == 0) {
+                // empty values are served without touching the filesystem
+                return new ByteArrayInputStream(new byte[0]);
             }
-            return result.toString();
+            if (locations[i] != PackStore.NO_LOCATION) {
+                return packStore.open(locations[i], lengths[i]);
+            }
+            return new FileInputStream(getCleanFile(i));
         }
 
         /**
@@ -972,4 +1619,96 @@ public final class DiskLruCache implements Closeable {
             return new File(directory, key + "." + i + ".tmp");
         }
     }
+
+    /**
+     * 多个缓存共享的容量预算，见{@link ShardedDiskLruCache}。
+     * 方法在持有调用方缓存的锁时调用，实现不能同步地访问其他缓存。
+     */
+    interface SharedBudget {
+        /**
+         * The size of a member cache changed by {@code delta} bytes.
+         */
+        void onSizeChanged(long delta);
+
+        /**
+         * Returns a value greater than any value returned before.
+         */
+        long nextAccessTime();
+    }
+
+    /**
+     * 打开缓存时使用的存储选项。
+     */
+    public static final class Options {
+        /**
+         * 不超过该字节数的value追加写入共享的pack段文件，超过的仍使用单独的文件。
+         * 0表示不使用pack段文件。
+         */
+        public int packThreshold = 0;
+
+        /**
+         * 淘汰策略：{@link DiskLruCache#EVICTION_LRU}、{@link DiskLruCache#EVICTION_SLRU}、
+         * {@link DiskLruCache#EVICTION_TINY_LFU}或{@link DiskLruCache#EVICTION_ARC}。
+         */
+        public int evictionPolicy = EVICTION_LRU;
+
+        /**
+         * 自定义淘汰策略，不为null时忽略{@link #evictionPolicy}。
+         */
+        public EvictionPolicy.Factory evictionPolicyFactory;
+    }
+
+    /**
+     * Buffers a value in memory while it is no longer than the pack threshold
+     * and spills it to the dirty file once it grows past it.
+     */
+    private static final class PackableOutputStream extends OutputStream {
+        private final File dirtyFile;
+        private final int threshold;
+        private byte[] buffer = new byte[1024];
+        private int count;
+        private OutputStream file;
+
+        private PackableOutputStream(File dirtyFile, int threshold) {
+            this.dirtyFile = dirtyFile;
+            this.threshold = threshold;
+        }
+
+        private boolean isSpilled() {
+            return file != null;
+        }
+
+        @Override public void write(int oneByte) throws IOException {
+            write(new byte[] { (byte) oneByte }, 0, 1);
+        }
+
+        @Override public void write(byte[] data, int offset, int length) throws IOException {
+            if (file == null && count + length > threshold) {
+                file = new FileOutputStream(dirtyFile);
+                file.write(buffer, 0, count);
+                buffer = null;
+            }
+            if (file != null) {
+                file.write(data, offset, length);
+                return;
+            }
+            if (count + length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + length));
+            }
+            System.arraycopy(data, offset, buffer, count, length);
+            count += length;
+        }
+
+        @Override public void flush() throws IOException {
+            if (file != null) {
+                file.flush();
+            }
+        }
+
+        @Override public void close() throws IOException {
+            if (file != null) {
+                file.close();
+            }
+        }
+    }
 }
@@ -0,0 +1,38 @@
+package com.tools.imagecache;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * {@link EvictionPolicy#evictionOrder()}的辅助方法。
+ */
+final class EvictionOrder {
+
+    private EvictionOrder() {
+    }
+
+    /**
+     * 依次返回{@code first}和{@code second}中的元素。
+     */
+    static <T> Iterator<T> concat(final Iterator<T> first, final Iterator<T> second) {
+        return new Iterator<T>() {
+            @Override public boolean hasNext() {
+                return first.hasNext() || second.hasNext();
+            }
+
+            @Override public T next() {
+                if (first.hasNext()) {
+                    return first.next();
+                }
+                if (second.hasNext()) {
+                    return second.next();
+                }
+                throw new NoSuchElementException();
+            }
+
+            @Override public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
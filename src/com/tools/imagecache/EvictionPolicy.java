@@ -0,0 +1,63 @@
+package com.tools.imagecache;
+
+import java.util.Iterator;
+
+/**
+ * {@link DiskLruCache}的淘汰策略。
+ *
+ * <p>缓存在entry被读取、未命中、写入和删除时通知策略，容量超出时按{@link #evictionOrder()}
+ * 的顺序淘汰第一个没有在编辑的entry，淘汰后通过{@link #onEvict(String)}通知策略。
+ * 策略只记录key和大小，不接触缓存文件。
+ *
+ * <p>所有方法都在持有所属DiskLruCache的锁时调用，实现不需要自己同步。
+ */
+public interface EvictionPolicy {
+
+    /**
+     * An entry was read.
+     */
+    void onRead(String key);
+
+    /**
+     * A key that isn't readable in the cache was looked up.
+     */
+    void onMiss(String key);
+
+    /**
+     * An entry was written or loaded from the journal.
+     *
+     * @param size the total byte size of the entry's values
+     */
+    void onWrite(String key, long size);
+
+    /**
+     * An entry was removed or evicted.
+     */
+    void onRemove(String key);
+
+    /**
+     * An entry was evicted to make room. Called after {@link #onRemove} for
+     * the same key; explicit removals don't trigger this callback.
+     */
+    void onEvict(String key);
+
+    /**
+     * Returns the tracked keys in the order they should be evicted. Computing
+     * the order must not change the policy's state: the cache skips keys whose
+     * entries are being edited and may ask again without evicting anything.
+     * The iterator is only used until the next call into the policy and its
+     * {@code remove()} need not be supported.
+     */
+    Iterator<String> evictionOrder();
+
+    /**
+     * Creates the policy of a cache.
+     */
+    interface Factory {
+        /**
+         * @param maxSize the maximum number of bytes of the cache the policy
+         *     is created for
+         */
+        EvictionPolicy create(long maxSize);
+    }
+}
@@ -0,0 +1,95 @@
+package com.tools.imagecache;
+
+/**
+ * 估计key访问频率的Count-Min Sketch，每个计数器4位，最大计数15。
+ *
+ * <p>每个key映射到同一个long中的4个计数器，频率取4个计数器的最小值。
+ * 记录次数达到容量的10倍时所有计数器减半，使频率随时间衰减，旧的热点不会永久占据缓存。
+ *
+ * <p>该类不是线程安全的。
+ */
+final class FrequencySketch {
+    private static final long[] SEED = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+    private static final int MAX_TABLE_SIZE = 1 << 20;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int size;
+
+    /**
+     * @param maximumSize the expected number of distinct keys in the cache
+     */
+    FrequencySketch(int maximumSize) {
+        final int capacity = Math.min(Math.max(maximumSize, 16), MAX_TABLE_SIZE);
+        final int tableSize = Integer.highestOneBit(capacity - 1) << 1;
+        table = new long[tableSize];
+        tableMask = tableSize - 1;
+        sampleSize = 10 * capacity;
+    }
+
+    /**
+     * Returns the estimated number of occurrences of {@code key}, up to 15.
+     */
+    int frequency(Object key) {
+        final int hash = spread(key.hashCode());
+        final int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            final int index = indexOf(hash, i);
+            final int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Records an occurrence of {@code key}.
+     */
+    void increment(Object key) {
+        final int hash = spread(key.hashCode());
+        final int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++size == sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        final int offset = counter << 2;
+        final long mask = 0xfL << offset;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    /** 所有计数器减半 */
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < table.length; i++) {
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size >>> 1) - (odd >>> 2);
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEED[i]) * SEED[i];
+        h += h >>> 32;
+        return ((int) h) & tableMask;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
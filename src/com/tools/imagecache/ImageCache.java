@@ -1,31 +1,44 @@
 package com.tools.imagecache;
 
-import android.annotation.TargetApi;
 import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
-import android.support.v4.util.LruCache;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
 
 import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.tools.thread.ImageCacheThreadPool;
 import com.tools.utils.FileUtil;
 import com.tools.utils.LogManager;
-import com.tools.utils.TargetVersionUtils;
 import com.tools.utils.TranscoderUtil;
 
 /**
  * 位图缓存处理类(内存和磁盘)。
+ *
+ * <p>通过{@link Context#registerComponentCallbacks}注册后，系统内存不足时按压力等级先释放位图池，
+ * 再按比例缩小内存缓存和编码数据缓存，压力解除一段时间后恢复原来的容量。磁盘缓存不受影响。
  * @author Ivan
  * @version 1.0
  */
-public class ImageCache {
+public class ImageCache implements ComponentCallbacks2 {
     private static final String TAG = "ImageCache";
 
     /** 默认内存缓存大小(5MB) */
@@ -37,19 +50,87 @@ public class ImageCache {
     /* 图像压缩设置(磁盘缓存) */
     private static final CompressFormat DEFAULT_COMPRESS_FORMAT = CompressFormat.PNG;
     private static final int DEFAULT_COMPRESS_QUALITY = 70;
-    private static final int DISK_CACHE_INDEX = 0;
+    /** 尺寸档位（位图宽高的下限，像素），请求尺寸向上取到某一档，同一档的请求共用一个缓存版本 */
+    private static final int[] RENDITION_SIZES = { 64, 128, 256, 512, 1024, 2048 };
+    /** 不缩放的原图档位 */
+    public static final int RENDITION_ORIGINAL = RENDITION_SIZES.length;
+
+    /*
+     * 磁盘缓存的每个entry保存同一个URL的下载原始数据和各个尺寸档位的图片，共用一次索引查找和同一个容量预算。
+     * 没有原始数据或某个档位还没有生成时对应的value为空；图片未经缩放且使用ENCODING_AUTO时档位的value
+     * 也为空，直接解码原始数据。
+     */
+    private static final int DISK_CACHE_VERSION = 3;
+    private static final int SOURCE_INDEX = 0;
+    private static final int DISK_CACHE_VALUE_COUNT = RENDITION_ORIGINAL + 2;
 
     /* 流程控制参数 */
     private static final boolean DEFAULT_MEM_CACHE_ENABLED = true;
     private static final boolean DEFAULT_DISK_CACHE_ENABLED = true;
     private static final boolean DEFAULT_CLEAR_DISK_CACHE_ON_START = false;
     private static final boolean DEFAULT_INIT_DISK_CACHE_ON_CREATE = false;
+    private static final boolean DEFAULT_NON_BLOCKING_DISK_STARTUP = false;
+    private static final int DEFAULT_DISK_CACHE_PACK_THRESHOLD = 0;
+    private static final int DEFAULT_DISK_CACHE_EVICTION_POLICY = DiskLruCache.EVICTION_LRU;
+
+    /** 磁盘缓存编码：全部使用{@link ImageCacheParams#compressFormat} */
+    public static final int ENCODING_FIXED = 0;
+    /** 磁盘缓存编码：未缩放的图片保存原始数据，不透明图片使用JPEG，有透明通道时使用PNG */
+    public static final int ENCODING_AUTO = 1;
+    private static final int DEFAULT_DISK_CACHE_ENCODING = ENCODING_FIXED;
+    private static final int DEFAULT_BITMAP_POOL_SIZE = 0;
+    private static final int DEFAULT_ENCODED_CACHE_SIZE = 0;
+    private static final boolean DEFAULT_MEM_CACHE_ADMISSION_FILTER = false;
+
+    /** 估计内存缓存中图片个数时使用的平均位图大小，128x128的ARGB_8888缩略图 */
+    private static final int AVERAGE_BITMAP_SIZE = 128 * 128 * 4;
+
+    /** 磁盘缓存初始化期间最多缓冲的写入数 */
+    private static final int MAX_PENDING_DISK_WRITES = 32;
 
-    private DiskLruCache diskLruCache;
-    private LruCache<String, Bitmap> memoryCache;
+    /** 最后一次内存压力回调之后经过该时间恢复原来的容量 */
+    private static final long TRIM_RESTORE_DELAY_MILLIS = 30 * 1000;
+
+    /** 内存缓存被清空后保留的容量比例，仍能放下当前屏幕上的图片 */
+    private static final float MIN_TRIM_RATIO = 0.125f;
+
+    private ShardedDiskLruCache diskLruCache;
+    private ConcurrentLruCache<String, Bitmap> memoryCache;
+    private ConcurrentLruCache<String, byte[]> encodedCache;
+    private BitmapPool bitmapPool;
     private ImageCacheParams cacheParams;
     private final Object diskCacheLock = new Object();
-    private boolean diskCacheStarting = true;
+    private volatile boolean diskCacheStarting = true;
+
+    /* 内存压力：当前内存缓存保留的容量比例，由trimLock保护写入。比例小于1时位图池不接收淘汰的位图 */
+    private final Object trimLock = new Object();
+    private volatile float memoryTrimRatio = 1f;
+    private final Handler trimHandler = new Handler(Looper.getMainLooper());
+    private final Runnable restoreMemoryCaches = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (trimLock) {
+                resizeMemoryCaches(1f);
+                memoryTrimRatio = 1f;
+            }
+            LogManager.writeLog(LogManager.DEBUG_LEVEL_INFO, TAG, "Memory cache restored");
+        }
+    };
+
+    /* 磁盘缓存初始化期间排队的查找和缓冲的写入，由pendingLock保护 */
+    private final Object pendingLock = new Object();
+    private final List<Runnable> pendingDiskLookups = new ArrayList<Runnable>();
+    private final Map<String, PendingDiskWrite> pendingDiskWrites
+            = new LinkedHashMap<String, PendingDiskWrite>();
+
+    /* diskCacheLock的竞争统计 */
+    private final AtomicLong diskLockWaitNanos = new AtomicLong();
+    private final AtomicLong diskLockAcquireCount = new AtomicLong();
+
+    /* 磁盘缓存写入统计 */
+    private final AtomicLong diskEncodeCpuNanos = new AtomicLong();
+    private final AtomicLong diskBytesWritten = new AtomicLong();
+    private final AtomicLong diskWriteCount = new AtomicLong();
 
     /**
      * 使用指定的参数创建一个新的ImageCache对象。
@@ -75,17 +156,48 @@ public class ImageCache {
     private void init(ImageCacheParams cacheParams) {
         this.cacheParams = cacheParams;
 
+        // 设置可复用位图池，由内存缓存淘汰的位图填充
+        if (cacheParams.bitmapPoolSize > 0) {
+            bitmapPool = new BitmapPool(cacheParams.bitmapPoolSize);
+        }
+
         // 设置内存缓存
         if (cacheParams.memoryCacheEnabled) {
             LogManager.writeLog(LogManager.DEBUG_LEVEL_INFO, TAG
             		, "Memory cache created (size = " +  this.cacheParams.memCacheSize + ")");
-            memoryCache = new LruCache<String, Bitmap>(this.cacheParams.memCacheSize) {
+            // get不加锁，UI线程的查找不会与加载线程的写入竞争同一个锁
+            final int expectedEntries = cacheParams.memCacheAdmissionFilter
+                    ? Math.max(1, cacheParams.memCacheSize / AVERAGE_BITMAP_SIZE) : 0;
+            memoryCache = new ConcurrentLruCache<String, Bitmap>(cacheParams.memCacheSize,
+                    ConcurrentLruCache.DEFAULT_CONCURRENCY_LEVEL, expectedEntries) {
                 
             	/** 使用字节数衡量图片大小 */
                 @Override
                 protected int sizeOf(String key, Bitmap bitmap) {
                     return getBitmapSize(bitmap);
                 }
+
+                /** 被移除的位图放入位图池，仍在显示的位图由位图池拒绝 */
+                @Override
+                protected void entryRemoved(boolean evicted, String key, Bitmap oldValue,
+                        Bitmap newValue) {
+                    if (bitmapPool != null && oldValue != newValue && memoryTrimRatio == 1f
+                            && !isPendingDiskWrite(oldValue)) {
+                        bitmapPool.put(oldValue);
+                    }
+                }
+            };
+        }
+
+        // 设置编码数据缓存，位于位图缓存和磁盘缓存之间
+        if (cacheParams.encodedCacheSize > 0) {
+            LogManager.writeLog(LogManager.DEBUG_LEVEL_INFO, TAG
+                    , "Encoded cache created (size = " + cacheParams.encodedCacheSize + ")");
+            encodedCache = new ConcurrentLruCache<String, byte[]>(cacheParams.encodedCacheSize) {
+                @Override
+                protected int sizeOf(String key, byte[] data) {
+                    return data.length;
+                }
             };
         }
 
@@ -102,6 +214,8 @@ public class ImageCache {
      * 默认情况下ImageCache不初始化磁盘缓存。
      */
     public void initDiskCache() {
+        final List<Runnable> lookups;
+        final Map<String, PendingDiskWrite> writes;
         // 设置磁盘高速缓存
         synchronized (diskCacheLock) {
             if (diskLruCache == null || diskLruCache.isClosed()) {
@@ -112,8 +226,10 @@ public class ImageCache {
                     }
                     if (diskCacheDir.getUsableSpace() > cacheParams.diskCacheSize) {
                         try {
-                            diskLruCache = DiskLruCache.open(
-                                    diskCacheDir, 1, 1, cacheParams.diskCacheSize);
+                            diskLruCache = ShardedDiskLruCache.open(diskCacheDir,
+                                    DISK_CACHE_VERSION, DISK_CACHE_VALUE_COUNT,
+                                    cacheParams.diskCacheSize, cacheParams.diskCacheSegmentCount,
+                                    cacheParams.newDiskCacheOptions());
                             LogManager.writeLog(LogManager.DEBUG_LEVEL_INFO, TAG, "Disk cache initialized");
                         } catch (final IOException e) {
                             cacheParams.diskCacheDir = null;
@@ -122,71 +238,362 @@ public class ImageCache {
                     }
                 }
             }
-            diskCacheStarting = false;
+            synchronized (pendingLock) {
+                diskCacheStarting = false;
+                lookups = new ArrayList<Runnable>(pendingDiskLookups);
+                writes = new LinkedHashMap<String, PendingDiskWrite>(pendingDiskWrites);
+                pendingDiskLookups.clear();
+            }
             diskCacheLock.notifyAll();
         }
+
+        // 回放初始化期间缓冲的写入，并重新提交排队的查找。每个写入完成后才从pendingDiskWrites中移除，
+        // 编码期间isPendingDiskWrite仍为true，位图不会因内存缓存淘汰而被位图池复用
+        for (Map.Entry<String, PendingDiskWrite> write : writes.entrySet()) {
+            final PendingDiskWrite pending = write.getValue();
+            addBitmapToDiskCache(pending.data, pending.bucket, pending.bitmap, pending.source,
+                    pending.scaled);
+            synchronized (pendingLock) {
+                if (pendingDiskWrites.get(write.getKey()) == pending) {
+                    pendingDiskWrites.remove(write.getKey());
+                }
+            }
+        }
+        for (Runnable lookup : lookups) {
+            ImageCacheThreadPool.execute(lookup);
+        }
     }
 
     /**
-     * 添加一个位图内存和磁盘缓存。
+     * 是否使用非阻塞的磁盘缓存启动模式，见{@link ImageCacheParams#nonBlockingDiskStartup}。
+     */
+    public boolean isNonBlockingDiskStartup() {
+        return cacheParams.nonBlockingDiskStartup;
+    }
+
+    /**
+     * 非阻塞启动模式下，如果磁盘缓存仍在初始化，把磁盘查找任务排队，
+     * 待索引加载完成后重新提交到线程池，调用线程不会被阻塞。
+     * @param lookup 需要读取磁盘缓存的任务
+     * @return true 任务已排队；false 不需要排队，调用方应直接读取磁盘缓存
+     */
+    public boolean deferUntilDiskCacheStarted(Runnable lookup) {
+        if (!cacheParams.nonBlockingDiskStartup) {
+            return false;
+        }
+        synchronized (pendingLock) {
+            if (!diskCacheStarting) {
+                return false;
+            }
+            pendingDiskLookups.add(lookup);
+            return true;
+        }
+    }
+
+    /**
+     * 添加一个位图内存和磁盘缓存，作为原图档位{@link #RENDITION_ORIGINAL}保存。
+     * diskCacheLock只在获取Snapshot/Editor期间持有，图片编码在锁外进行。
      * @param data 位图存储惟一标识符
      * @param bitmap 位图存储
      */
     public void addBitmapToCache(String data, Bitmap bitmap) {
+        addBitmapToCache(data, RENDITION_ORIGINAL, bitmap, null, true);
+    }
+
+    /**
+     * 添加一个位图到内存和磁盘缓存。原始数据和各个尺寸档位的位图保存在同一个磁盘缓存entry中。
+     * @param data 位图存储惟一标识符
+     * @param bucket 位图的尺寸档位，见{@link #renditionBucket(int, int)}
+     * @param bitmap 位图存储
+     * @param source 位图的原始编码数据，没有时为null
+     * @param scaled 位图是否经过缩放。未缩放且{@link ImageCacheParams#diskCacheEncoding}为
+     *     {@link #ENCODING_AUTO}时只保存原始数据，不再重新编码
+     */
+    public void addBitmapToCache(String data, int bucket, Bitmap bitmap, byte[] source,
+            boolean scaled) {
         if (data == null || bitmap == null) {
             return;
         }
 
-        // 添加到内存缓存
-        if (memoryCache != null && memoryCache.get(data) == null) {
-            memoryCache.put(data, bitmap);
+        // 非阻塞启动模式下，初始化期间的写入先缓冲，初始化完成后回放
+        if (cacheParams.nonBlockingDiskStartup) {
+            synchronized (pendingLock) {
+                if (diskCacheStarting) {
+                    if (pendingDiskWrites.size() < MAX_PENDING_DISK_WRITES) {
+                        pendingDiskWrites.put(renditionKey(data, bucket),
+                                new PendingDiskWrite(data, bucket, bitmap, source, scaled));
+                    }
+                    addBitmapToMemCache(data, bucket, bitmap);
+                    return;
+                }
+            }
+        }
+
+        // 先编码写入磁盘再放入内存缓存，编码期间位图不会因内存缓存淘汰而被位图池复用
+        addBitmapToDiskCache(data, bucket, bitmap, source, scaled);
+        addBitmapToMemCache(data, bucket, bitmap);
+        if (source != null && !scaled) {
+            // 未缩放时原始数据就是该档位的编码
+            addToEncodedCache(data, bucket, source);
+        }
+    }
+
+    /**
+     * 把一个尺寸档位的编码数据放入编码数据缓存。超过缓存容量1/8的数据不放入，避免挤掉大量小图。
+     */
+    private void addToEncodedCache(String data, int bucket, byte[] encoded) {
+        if (encodedCache != null && encoded.length <= encodedCache.maxSize() / 8) {
+            encodedCache.put(renditionKey(data, bucket), encoded);
+        }
+    }
+
+    /**
+     * 从编码数据缓存获取并解码指定数据的一个尺寸档位，不访问磁盘。
+     * 内存缓存未命中时，编码数据比解码后的位图小很多倍，重新滑回来时只需要解码而不需要读磁盘。
+     * @param data 数据项的唯一标识符
+     * @param bucket 尺寸档位
+     * @return 解码的位图或者null
+     */
+    public Bitmap getBitmapFromEncodedCache(String data, int bucket) {
+        if (encodedCache == null) {
+            return null;
+        }
+        final byte[] encoded = encodedCache.get(renditionKey(data, bucket));
+        if (encoded == null) {
+            return null;
+        }
+        LogManager.writeLog(LogManager.DEBUG_LEVEL_INFO, TAG, "Encoded cache hit");
+        final int size = renditionSize(bucket);
+        return ImageResizer.decodeSampledBitmapFromByteArray(encoded, size, size,
+                new BitmapFactory.Options(), bitmapPool);
+    }
+
+    /**
+     * 位图是否在等待写入磁盘缓存，等待写入的位图不能放入位图池。
+     */
+    private boolean isPendingDiskWrite(Bitmap bitmap) {
+        synchronized (pendingLock) {
+            for (PendingDiskWrite pending : pendingDiskWrites.values()) {
+                if (pending.bitmap == bitmap) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 只把原始编码数据写入磁盘缓存，用于不需要解码的预取。entry中已有原始数据时不写入。
+     * @param data 位图存储惟一标识符
+     * @param source 原始编码数据
+     */
+    public void addSourceToDiskCache(String data, byte[] source) {
+        if (data == null || source == null) {
+            return;
+        }
+        if (cacheParams.nonBlockingDiskStartup) {
+            synchronized (pendingLock) {
+                if (diskCacheStarting) {
+                    if (pendingDiskWrites.size() < MAX_PENDING_DISK_WRITES) {
+                        pendingDiskWrites.put(renditionKey(data, RENDITION_ORIGINAL),
+                                new PendingDiskWrite(data, RENDITION_ORIGINAL, null, source, true));
+                    }
+                    return;
+                }
+            }
+        }
+        addBitmapToDiskCache(data, RENDITION_ORIGINAL, null, source, true);
+    }
+
+    /**
+     * 磁盘缓存中是否已有指定数据的entry，不读取也不解码数据。
+     * @param data 数据项的唯一标识符
+     */
+    public boolean isInDiskCache(String data) {
+        final String key = hashKeyForDisk(data);
+        final long waitStart = System.nanoTime();
+        synchronized (diskCacheLock) {
+            recordDiskLockWait(waitStart);
+            while (diskCacheStarting) {
+                try {
+                    diskCacheLock.wait();
+                } catch (InterruptedException e) {}
+            }
+            if (diskLruCache == null) {
+                return false;
+            }
+            try {
+                final DiskLruCache.Snapshot snapshot = diskLruCache.get(key);
+                if (snapshot == null) {
+                    return false;
+                }
+                snapshot.close();
+                return true;
+            } catch (IOException e) {
+                LogManager.writeLog(LogManager.DEBUG_LEVEL_ERROR, TAG, "isInDiskCache:", e);
+            } catch (IllegalStateException e) {
+                LogManager.writeLog(LogManager.DEBUG_LEVEL_ERROR, TAG, "isInDiskCache:", e);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 添加一个位图到内存缓存。
+     * @param data 位图存储惟一标识符
+     * @param bucket 位图的尺寸档位
+     * @param bitmap 位图存储
+     */
+    public void addBitmapToMemCache(String data, int bucket, Bitmap bitmap) {
+        final String key = renditionKey(data, bucket);
+        if (memoryCache != null && memoryCache.get(key) == null) {
+            memoryCache.put(key, bitmap);
         }
+    }
 
+    /**
+     * 添加一个位图到磁盘缓存。entry不存在时创建并写入全部value；已存在时只补充缺少的原始数据和该档位的位图。
+     * @param data 位图存储惟一标识符
+     * @param bucket 位图的尺寸档位
+     * @param bitmap 位图存储，为null时只写入原始数据
+     * @param source 原始编码数据，可以为null
+     * @param scaled 位图是否经过缩放
+     */
+    private void addBitmapToDiskCache(String data, int bucket, Bitmap bitmap, byte[] source,
+            boolean scaled) {
+        final String key = hashKeyForDisk(data);
+        final boolean renditionIsSource = source != null && !scaled
+                && cacheParams.diskCacheEncoding == ENCODING_AUTO;
+        DiskLruCache.Editor editor = null;
+        boolean newEntry = false;
+        boolean writeSource = source != null;
+        boolean writeRendition = bitmap != null;
+        final long waitStart = System.nanoTime();
         synchronized (diskCacheLock) {
-            // 添加到磁盘缓存
+            recordDiskLockWait(waitStart);
             if (diskLruCache != null) {
-                final String key = hashKeyForDisk(data);
-                OutputStream out = null;
                 try {
-                    DiskLruCache.Snapshot snapshot = diskLruCache.get(key);
+                    final DiskLruCache.Snapshot snapshot = diskLruCache.get(key);
                     if (snapshot == null) {
-                        final DiskLruCache.Editor editor = diskLruCache.edit(key);
-                        if (editor != null) {
-                            out = editor.newOutputStream(DISK_CACHE_INDEX);
-                            bitmap.compress(
-                                    cacheParams.compressFormat, cacheParams.compressQuality, out);
-                            editor.commit();
-                            out.close();
-                        }
+                        editor = diskLruCache.edit(key);
+                        newEntry = true;
                     } else {
-                        snapshot.getInputStream(DISK_CACHE_INDEX).close();
+                        final boolean hasSource = snapshot.getLength(SOURCE_INDEX) > 0;
+                        writeSource = !hasSource && source != null;
+                        writeRendition = bitmap != null
+                                && snapshot.getLength(renditionIndex(bucket)) == 0
+                                && !(hasSource && renditionIsSource);
+                        if (writeSource || writeRendition) {
+                            editor = snapshot.edit();
+                        }
+                        snapshot.close();
                     }
                 } catch (IOException e) {
-                	LogManager.writeLog(LogManager.DEBUG_LEVEL_ERROR, TAG, "addBitmapToCache:", e);
+                    LogManager.writeLog(LogManager.DEBUG_LEVEL_ERROR, TAG, "addBitmapToCache:", e);
                 } catch (Exception e) {
-                	LogManager.writeLog(LogManager.DEBUG_LEVEL_ERROR, TAG, "addBitmapToCache:", e);
-                } finally {
-                    try {
-                        if (out != null) {
-                            out.close();
-                        }
-                    } catch (IOException e) {
-                    	LogManager.writeLog(LogManager.DEBUG_LEVEL_ERROR, TAG, "Close outputStream:", e);
-                    }
+                    LogManager.writeLog(LogManager.DEBUG_LEVEL_ERROR, TAG, "addBitmapToCache:", e);
                 }
             }
         }
+
+        if (editor == null) {
+            return;
+        }
+        OutputStream out = null;
+        boolean committed = false;
+        try {
+            long bytes = 0;
+            long cpuNanos = 0;
+            String encoding = "none";
+            for (int i = 0; i < DISK_CACHE_VALUE_COUNT; i++) {
+                final boolean sourceValue = i == SOURCE_INDEX && writeSource;
+                final boolean renditionValue = i == renditionIndex(bucket) && writeRendition;
+                if (!newEntry && !sourceValue && !renditionValue) {
+                    // 已存在的entry中没有写入的value保持不变
+                    continue;
+                }
+                final CountingOutputStream value
+                        = new CountingOutputStream(editor.newOutputStream(i));
+                out = value;
+                if (sourceValue) {
+                    value.write(source);
+                } else if (renditionValue) {
+                    final long cpuStart = Debug.threadCpuTimeNanos();
+                    encoding = writeRendition(bitmap, renditionIsSource, value);
+                    cpuNanos = Debug.threadCpuTimeNanos() - cpuStart;
+                }
+                // 新entry的其他档位写入空value
+                out.close();
+                bytes += value.count;
+            }
+            editor.commit();
+            committed = true;
+            diskEncodeCpuNanos.addAndGet(cpuNanos);
+            diskBytesWritten.addAndGet(bytes);
+            diskWriteCount.incrementAndGet();
+            LogManager.writeLog(LogManager.DEBUG_LEVEL_INFO, TAG, "Disk cache write " + encoding
+                    + ", " + bytes + " bytes, cpu " + cpuNanos / 1000 + "us");
+            out = null;
+        } catch (IOException e) {
+            LogManager.writeLog(LogManager.DEBUG_LEVEL_ERROR, TAG, "addBitmapToCache:", e);
+        } catch (Exception e) {
+            LogManager.writeLog(LogManager.DEBUG_LEVEL_ERROR, TAG, "addBitmapToCache:", e);
+        } finally {
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            } catch (IOException e) {
+                LogManager.writeLog(LogManager.DEBUG_LEVEL_ERROR, TAG, "Close outputStream:", e);
+            }
+            if (!committed) {
+                abortQuietly(editor);
+            }
+        }
     }
 
     /**
-     * 从内存缓存获取指定数据。
+     * 按{@link ImageCacheParams#diskCacheEncoding}把位图编码写入磁盘缓存。
+     * @param renditionIsSource 位图未经缩放且原始数据已保存，不需要再编码
+     * @return 使用的编码，用于日志
+     */
+    private String writeRendition(Bitmap bitmap, boolean renditionIsSource, OutputStream out) {
+        if (cacheParams.diskCacheEncoding == ENCODING_AUTO) {
+            if (renditionIsSource) {
+                // 没有缩放过，原始数据已经是最紧凑的编码，读取时直接解码原始数据
+                return "source";
+            }
+            if (bitmap.hasAlpha()) {
+                bitmap.compress(CompressFormat.PNG, 100, out);
+                return "PNG";
+            }
+            bitmap.compress(CompressFormat.JPEG, cacheParams.compressQuality, out);
+            return "JPEG";
+        }
+        bitmap.compress(cacheParams.compressFormat, cacheParams.compressQuality, out);
+        return cacheParams.compressFormat.name();
+    }
+
+    /**
+     * 从内存缓存获取指定数据的原图档位。
      *
      * @param 数据项的唯一标识符
      * @return 缓存中的位图或者null
      */
     public Bitmap getBitmapFromMemCache(String data) {
+        return getBitmapFromMemCache(data, RENDITION_ORIGINAL);
+    }
+
+    /**
+     * 从内存缓存获取指定数据的一个尺寸档位。
+     *
+     * @param data 数据项的唯一标识符
+     * @param bucket 尺寸档位
+     * @return 缓存中的位图或者null
+     */
+    public Bitmap getBitmapFromMemCache(String data, int bucket) {
         if (memoryCache != null) {
-            final Bitmap memBitmap = memoryCache.get(data);
+            final Bitmap memBitmap = memoryCache.get(renditionKey(data, bucket));
             if (memBitmap != null) {
                 LogManager.writeLog(LogManager.DEBUG_LEVEL_INFO, TAG, "Memory cache hit");
                 return memBitmap;
@@ -196,42 +603,91 @@ public class ImageCache {
     }
 
     /**
-     * 从磁盘缓存获取指定数据
+     * 从磁盘缓存获取指定数据的原图档位。
      * @param 数据项的唯一标识符
      * @return 缓存中的位图或者null
      */
     public Bitmap getBitmapFromDiskCache(String data) {
+        return getBitmapFromDiskCache(data, RENDITION_ORIGINAL);
+    }
+
+    /**
+     * 从磁盘缓存获取指定数据的一个尺寸档位，只查找一次索引。
+     * 该档位还没有缓存时，从已缓存的原始数据或更大的档位在本地缩放生成并写回缓存，不需要重新下载。
+     * diskCacheLock只在获取Snapshot/Editor期间持有，图片解码在锁外进行。
+     * @param data 数据项的唯一标识符
+     * @param bucket 尺寸档位
+     * @return 缓存中的位图或者null
+     */
+    public Bitmap getBitmapFromDiskCache(String data, int bucket) {
         final String key = hashKeyForDisk(data);
+        DiskLruCache.Snapshot snapshot = null;
+        final long waitStart = System.nanoTime();
         synchronized (diskCacheLock) {
+            recordDiskLockWait(waitStart);
             while (diskCacheStarting) {
                 try {
                     diskCacheLock.wait();
                 } catch (InterruptedException e) {}
             }
             if (diskLruCache != null) {
-                InputStream inputStream = null;
                 try {
-                    final DiskLruCache.Snapshot snapshot = diskLruCache.get(key);
-                    if (snapshot != null) {
-                        LogManager.writeLog(LogManager.DEBUG_LEVEL_INFO, TAG, "Disk cache hit");
-                        inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
-                        if (inputStream != null) {
-                            final Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
-                            return bitmap;
-                        }
-                    }
+                    snapshot = diskLruCache.get(key);
                 } catch (final IOException e) {
                     LogManager.writeLog(LogManager.DEBUG_LEVEL_ERROR, TAG, "getBitmapFromDiskCache:", e);
-                } finally {
-                    try {
-                        if (inputStream != null) {
-                            inputStream.close();
-                        }
-                    } catch (IOException e) {}
+                } catch (IllegalStateException e) {
+                    LogManager.writeLog(LogManager.DEBUG_LEVEL_ERROR, TAG, "getBitmapFromDiskCache:", e);
                 }
             }
+        }
+
+        if (snapshot == null) {
             return null;
         }
+        Bitmap bitmap = null;
+        boolean derived = false;
+        try {
+            // 一次读入整个value再解码，避免decodeStream对无缓冲文件流的大量小读取。
+            // BitmapFactory只接受字节数组，映射文件只会多一次复制，所以直接读到堆上
+            final byte[] rendition = snapshot.getBytes(renditionIndex(bucket));
+            if (rendition.length > 0) {
+                LogManager.writeLog(LogManager.DEBUG_LEVEL_INFO, TAG, "Disk cache hit");
+                if (encodedCache != null) {
+                    addToEncodedCache(data, bucket, rendition);
+                }
+                return ImageResizer.decodeByteBuffer(ByteBuffer.wrap(rendition), bitmapPool);
+            }
+
+            // 优先使用原始数据，没有时使用最接近的更大档位
+            byte[] origin = snapshot.getBytes(SOURCE_INDEX);
+            final boolean fromSource = origin.length > 0;
+            for (int b = bucket + 1; origin.length == 0 && b <= RENDITION_ORIGINAL; b++) {
+                origin = snapshot.getBytes(renditionIndex(b));
+            }
+            if (origin.length == 0) {
+                return null;
+            }
+            LogManager.writeLog(LogManager.DEBUG_LEVEL_INFO, TAG, "Disk cache hit, deriving rendition");
+            final int size = renditionSize(bucket);
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            bitmap = ImageResizer.decodeSampledBitmapFromByteBuffer(ByteBuffer.wrap(origin),
+                    size, size, options, bitmapPool);
+            // 从原始数据解码且没有缩放时，原始数据就是该档位的编码
+            derived = bitmap != null && !(fromSource && options.inSampleSize <= 1
+                    && cacheParams.diskCacheEncoding == ENCODING_AUTO);
+            if (bitmap != null && !derived && encodedCache != null) {
+                // 原始数据就是该档位的编码
+                addToEncodedCache(data, bucket, origin);
+            }
+        } catch (IOException e) {
+            LogManager.writeLog(LogManager.DEBUG_LEVEL_ERROR, TAG, "getBitmapFromDiskCache:", e);
+        } finally {
+            snapshot.close();
+        }
+        if (derived) {
+            addBitmapToDiskCache(data, bucket, bitmap, null, true);
+        }
+        return bitmap;
     }
 
     /**
@@ -243,6 +699,12 @@ public class ImageCache {
             memoryCache.evictAll();
             LogManager.writeLog(LogManager.DEBUG_LEVEL_INFO, TAG, "Memory cache cleared");
         }
+        if (encodedCache != null) {
+            encodedCache.evictAll();
+        }
+        if (bitmapPool != null) {
+            bitmapPool.clear();
+        }
 
         synchronized (diskCacheLock) {
             diskCacheStarting = true;
@@ -259,6 +721,81 @@ public class ImageCache {
         }
     }
 
+    /**
+     * 按系统内存压力等级释放内存：先清空位图池，再把内存缓存和编码数据缓存缩小到原容量的一定比例。
+     * 应用在后台且即将被回收时清空内存缓存。磁盘缓存不受影响。
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        final float ratio;
+        if (level >= TRIM_MEMORY_MODERATE) {
+            ratio = 0f;
+        } else if (level >= TRIM_MEMORY_BACKGROUND) {
+            ratio = 0.25f;
+        } else if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            ratio = 0.5f;
+        } else if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            ratio = 0.25f;
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            ratio = 0.5f;
+        } else {
+            ratio = 0.75f;
+        }
+        trimMemory(ratio);
+        LogManager.writeLog(LogManager.DEBUG_LEVEL_INFO, TAG, "onTrimMemory level = " + level
+                + ", memory cache size = " + (memoryCache != null ? memoryCache.size() : 0));
+    }
+
+    @Override
+    public void onLowMemory() {
+        trimMemory(0f);
+        LogManager.writeLog(LogManager.DEBUG_LEVEL_INFO, TAG, "onLowMemory");
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    /**
+     * 释放位图池，把内存缓存和编码数据缓存缩小到原容量的{@code ratio}。
+     * 连续的回调只会继续缩小，不会因为较轻的压力等级而放大；最后一次回调之后
+     * {@link #TRIM_RESTORE_DELAY_MILLIS}在主线程恢复原来的容量。
+     */
+    private void trimMemory(float ratio) {
+        synchronized (trimLock) {
+            // 先停止回收淘汰的位图，再清空位图池，缩小内存缓存时淘汰的位图直接交给GC
+            memoryTrimRatio = Math.min(memoryTrimRatio, ratio);
+            if (bitmapPool != null) {
+                bitmapPool.clear();
+            }
+            resizeMemoryCaches(memoryTrimRatio);
+        }
+        trimHandler.removeCallbacks(restoreMemoryCaches);
+        trimHandler.postDelayed(restoreMemoryCaches, TRIM_RESTORE_DELAY_MILLIS);
+    }
+
+    /**
+     * 把内存缓存和编码数据缓存的容量设为原容量的{@code ratio}。ratio为0时清空缓存，
+     * 容量保留{@link #MIN_TRIM_RATIO}，之后加载的图片仍然可以缓存。
+     */
+    private void resizeMemoryCaches(float ratio) {
+        if (ratio == 0f) {
+            if (memoryCache != null) {
+                memoryCache.evictAll();
+            }
+            if (encodedCache != null) {
+                encodedCache.evictAll();
+            }
+            ratio = MIN_TRIM_RATIO;
+        }
+        if (memoryCache != null) {
+            memoryCache.resize(Math.max(1, (long) (cacheParams.memCacheSize * ratio)));
+        }
+        if (encodedCache != null) {
+            encodedCache.resize(Math.max(1, (long) (cacheParams.encodedCacheSize * ratio)));
+        }
+    }
+
     /**
      * 刷新磁盘高速缓存与ImageCache对象的关联。
      * 注意：磁盘访问不应该在（主要/UI）线程上执行。
@@ -296,6 +833,152 @@ public class ImageCache {
         }
     }
 
+    /**
+     * 返回内存缓存的命中次数。
+     */
+    public long getMemoryCacheHitCount() {
+        return memoryCache != null ? memoryCache.hitCount() : 0;
+    }
+
+    /**
+     * 返回内存缓存的未命中次数。
+     */
+    public long getMemoryCacheMissCount() {
+        return memoryCache != null ? memoryCache.missCount() : 0;
+    }
+
+    /**
+     * 返回内存缓存中因准入过滤而离开窗口后直接被淘汰的位图数。
+     */
+    public long getMemoryCacheRejectedCount() {
+        return memoryCache != null ? memoryCache.rejectedCount() : 0;
+    }
+
+    /**
+     * 返回编码数据缓存的命中次数。
+     */
+    public long getEncodedCacheHitCount() {
+        return encodedCache != null ? encodedCache.hitCount() : 0;
+    }
+
+    /**
+     * 返回编码数据缓存的未命中次数。
+     */
+    public long getEncodedCacheMissCount() {
+        return encodedCache != null ? encodedCache.missCount() : 0;
+    }
+
+    /**
+     * 返回编码数据缓存当前占用的字节数。
+     */
+    public long getEncodedCacheSize() {
+        return encodedCache != null ? encodedCache.size() : 0;
+    }
+
+    /**
+     * 返回可复用位图池，未启用时返回null。位图池提供复用命中率等统计。
+     */
+    public BitmapPool getBitmapPool() {
+        return bitmapPool;
+    }
+
+    /**
+     * 获取等待diskCacheLock的累计时间（不包含等待磁盘缓存初始化的时间）。
+     * @return 累计等待时间（毫秒）
+     */
+    public long getDiskLockWaitTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(diskLockWaitNanos.get());
+    }
+
+    /**
+     * 获取diskCacheLock的累计获取次数。
+     * @return 获取次数
+     */
+    public long getDiskLockAcquireCount() {
+        return diskLockAcquireCount.get();
+    }
+
+    /**
+     * 获取写入磁盘缓存时编码位图累计占用的线程CPU时间。
+     * @return CPU时间（毫秒）
+     */
+    public long getDiskEncodeCpuTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(diskEncodeCpuNanos.get());
+    }
+
+    /**
+     * 获取累计写入磁盘缓存的字节数。
+     * @return 字节数
+     */
+    public long getDiskBytesWritten() {
+        return diskBytesWritten.get();
+    }
+
+    /**
+     * 获取累计写入磁盘缓存的图片数。
+     * @return 图片数
+     */
+    public long getDiskWriteCount() {
+        return diskWriteCount.get();
+    }
+
+    private void recordDiskLockWait(long waitStart) {
+        diskLockWaitNanos.addAndGet(System.nanoTime() - waitStart);
+        diskLockAcquireCount.incrementAndGet();
+    }
+
+    private static void abortQuietly(DiskLruCache.Editor editor) {
+        try {
+            editor.abort();
+        } catch (IOException e) {
+            LogManager.writeLog(LogManager.DEBUG_LEVEL_ERROR, TAG, "abort:", e);
+        } catch (IllegalStateException e) {
+            // 编辑已经结束（例如缓存已被关闭）
+        }
+    }
+
+    /**
+     * 返回请求尺寸所在的档位：宽高中较大的一个向上取到最近的档位，超过最大档位或不大于0时为原图档位。
+     * @param reqWidth 请求的宽度
+     * @param reqHeight 请求的高度
+     * @return 尺寸档位
+     */
+    public static int renditionBucket(int reqWidth, int reqHeight) {
+        final int size = Math.max(reqWidth, reqHeight);
+        if (size <= 0) {
+            return RENDITION_ORIGINAL;
+        }
+        for (int i = 0; i < RENDITION_SIZES.length; i++) {
+            if (size <= RENDITION_SIZES[i]) {
+                return i;
+            }
+        }
+        return RENDITION_ORIGINAL;
+    }
+
+    /**
+     * 返回档位解码时使用的目标宽高，原图档位为{@link Integer#MAX_VALUE}（不缩放）。
+     * @param bucket 尺寸档位
+     * @return 目标宽高
+     */
+    public static int renditionSize(int bucket) {
+        return bucket < RENDITION_SIZES.length ? RENDITION_SIZES[bucket] : Integer.MAX_VALUE;
+    }
+
+    /**
+     * 返回内存缓存中指定数据和档位的key。
+     * @param data 数据项的唯一标识符
+     * @param bucket 尺寸档位
+     * @return 内存缓存key
+     */
+    public static String renditionKey(String data, int bucket) {
+        return data + '#' + bucket;
+    }
+
+    private static int renditionIndex(int bucket) {
+        return SOURCE_INDEX + 1 + bucket;
+    }
+
     /**
      * 散列方法,改变一个字符串(如URL)到一个散列适合使用的磁盘文件名。
      * @param key 需要做转换的字符串
@@ -314,17 +997,13 @@ public class ImageCache {
     }
 
     /**
-     * 获取位图的大小（字节）
+     * 获取位图占用的内存（字节）。复用inBitmap解码的位图分配的内存可能大于getByteCount()，
+     * 所以按分配的大小计算，与{@link BitmapPool}的预算一致。
      * @param bitmap
-     * @return 位图的大小（字节）
+     * @return 位图分配的内存（字节）
      */
-    @TargetApi(12)
     public static int getBitmapSize(Bitmap bitmap) {
-        if (TargetVersionUtils.hasHoneycombMR1()) {
-            return bitmap.getByteCount();
-        }
-
-        return bitmap.getRowBytes() * bitmap.getHeight();
+        return bitmap.getAllocationByteCount();
     }
 
     /**
@@ -335,6 +1014,7 @@ public class ImageCache {
     public static class ImageCacheParams {
         public int memCacheSize = DEFAULT_MEM_CACHE_SIZE;
         public int diskCacheSize = DEFAULT_DISK_CACHE_SIZE;
+        public int diskCacheSegmentCount = ShardedDiskLruCache.DEFAULT_SEGMENT_COUNT;
         public File diskCacheDir;
         public CompressFormat compressFormat = DEFAULT_COMPRESS_FORMAT;
         public int compressQuality = DEFAULT_COMPRESS_QUALITY;
@@ -342,6 +1022,46 @@ public class ImageCache {
         public boolean diskCacheEnabled = DEFAULT_DISK_CACHE_ENABLED;
         public boolean clearDiskCacheOnStart = DEFAULT_CLEAR_DISK_CACHE_ON_START;
         public boolean initDiskCacheOnCreate = DEFAULT_INIT_DISK_CACHE_ON_CREATE;
+        /**
+         * 非阻塞的磁盘缓存启动模式：初始化期间内存缓存照常命中，磁盘查找排队到索引加载完成后执行，
+         * 磁盘写入先缓冲再回放，网络请求不必等待磁盘缓存初始化。
+         */
+        public boolean nonBlockingDiskStartup = DEFAULT_NON_BLOCKING_DISK_STARTUP;
+        /**
+         * 不超过该字节数的缓存数据追加写入共享的pack段文件，不再每张图片一个文件，
+         * 适合大量的小缩略图。0表示不使用pack段文件。
+         */
+        public int diskCachePackThreshold = DEFAULT_DISK_CACHE_PACK_THRESHOLD;
+        /**
+         * 磁盘缓存的淘汰策略，取值为{@link DiskLruCache#EVICTION_LRU}、
+         * {@link DiskLruCache#EVICTION_SLRU}、{@link DiskLruCache#EVICTION_TINY_LFU}
+         * 或{@link DiskLruCache#EVICTION_ARC}。
+         * 大量只出现一次的图片容易挤掉常用的头像和图标时可以使用TinyLFU。
+         */
+        public int diskCacheEvictionPolicy = DEFAULT_DISK_CACHE_EVICTION_POLICY;
+        /**
+         * 磁盘缓存的编码方式，{@link ImageCache#ENCODING_FIXED}或{@link ImageCache#ENCODING_AUTO}。
+         */
+        public int diskCacheEncoding = DEFAULT_DISK_CACHE_ENCODING;
+        /**
+         * 可复用位图池的字节数，0表示不使用。内存缓存淘汰的位图放入池中，解码时复用其内存。
+         * 位图池在{@link #memCacheSize}之外另外占用内存，需要控制总量时使用{@link #splitMemCacheSize}。
+         * 只有通过ImageWorker显示位图时才能判断位图是否仍在显示，自行调用ImageView.setImageBitmap
+         * 显示缓存中位图的应用不应启用。
+         */
+        public int bitmapPoolSize = DEFAULT_BITMAP_POOL_SIZE;
+        /**
+         * 编码数据缓存的字节数，0表示不使用。内存中保存图片的编码数据（通常比解码后的位图小数倍），
+         * 位图缓存未命中时只需要解码而不需要读取磁盘缓存。
+         * 同样在{@link #memCacheSize}之外另外占用内存。
+         */
+        public int encodedCacheSize = DEFAULT_ENCODED_CACHE_SIZE;
+        /**
+         * 内存缓存是否使用基于访问频率的准入过滤（W-TinyLFU）。新位图先进入LRU窗口，
+         * 离开窗口时只有估计访问频率高于将被淘汰的位图才留在缓存中，
+         * 快速滑过长列表时只出现一次的图片不会挤掉反复使用的图标。
+         */
+        public boolean memCacheAdmissionFilter = DEFAULT_MEM_CACHE_ADMISSION_FILTER;
 
         public ImageCacheParams(Context context, String uniqueName) {
             diskCacheDir = FileUtil.getCacheDir(context, uniqueName);
@@ -368,6 +1088,75 @@ public class ImageCache {
             int memoryTotal = ((ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass();
             memCacheSize = Math.round(percent * memoryTotal * 1024 * 1024);
         }
+
+        /**
+         * 从当前的{@link #memCacheSize}中划出位图池和编码数据缓存，三者之和仍为原来的memCacheSize，
+         * 例如setMemCacheSizePercent(0.25f)之后调用，三层内存缓存一共使用25%的内存。
+         * @param poolPercent 位图池所占的比例
+         * @param encodedPercent 编码数据缓存所占的比例
+         * @throws IllegalArgumentException 比例为负数或两者之和不小于1
+         */
+        public void splitMemCacheSize(float poolPercent, float encodedPercent) {
+            if (poolPercent < 0 || encodedPercent < 0 || poolPercent + encodedPercent >= 1) {
+                throw new IllegalArgumentException("splitMemCacheSize - percents must be "
+                        + "non-negative and sum to less than 1");
+            }
+            final int total = memCacheSize;
+            bitmapPoolSize = Math.round(total * poolPercent);
+            encodedCacheSize = Math.round(total * encodedPercent);
+            memCacheSize = total - bitmapPoolSize - encodedCacheSize;
+        }
+
+        /**
+         * 根据当前参数创建磁盘缓存的存储选项。
+         */
+        public DiskLruCache.Options newDiskCacheOptions() {
+            final DiskLruCache.Options options = new DiskLruCache.Options();
+            options.packThreshold = diskCachePackThreshold;
+            options.evictionPolicy = diskCacheEvictionPolicy;
+            return options;
+        }
+    }
+
+    /**
+     * 磁盘缓存初始化期间缓冲的写入。
+     */
+    private static final class PendingDiskWrite {
+        final String data;
+        final int bucket;
+        final Bitmap bitmap;
+        final byte[] source;
+        final boolean scaled;
+
+        PendingDiskWrite(String data, int bucket, Bitmap bitmap, byte[] source, boolean scaled) {
+            this.data = data;
+            this.bucket = bucket;
+            this.bitmap = bitmap;
+            this.source = source;
+            this.scaled = scaled;
+        }
+    }
+
+    /**
+     * 统计写入字节数的输出流。
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            out.write(oneByte);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            count += length;
+        }
     }
-    
 }
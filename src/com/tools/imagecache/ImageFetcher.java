@@ -9,13 +9,15 @@ import com.tools.utils.LogManager;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileDescriptor;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * 根据图片的URL获取图片并缓存。 缓存同时会根据设置调整图片的大小。 支持内存和硬盘的二级缓存。
@@ -29,16 +31,18 @@ public class ImageFetcher extends ImageResizer {
 
 	private static ImageFetcher imageFetcher1;
 
-	private static final int HTTP_CACHE_SIZE = 10 * 1024 * 1024; // 10MB
+	/** 旧版本单独的http缓存目录，原始数据现在和处理后的图片保存在ImageCache的同一个entry中 */
 	private static final String HTTP_CACHE_DIR = "http";
 	private static final int IO_BUFFER_SIZE = 8 * 1024;
 
+	/** 位图池和编码数据缓存占memCacheSize的比例 */
+	private static final float MEM_CACHE_POOL_PERCENT = 0.15f;
+	private static final float MEM_CACHE_ENCODED_PERCENT = 0.15f;
+
 	private File httpCacheDir;
-	private DiskLruCache httpDiskCache;
 
-	private boolean httpDiskCacheStarting = true;
-	private final Object httpDiskCacheLock = new Object();
-	private static final int DISK_CACHE_INDEX = 0;
+	/** 正在下载的URL，同一个URL同时只下载一次 */
+	private final Map<String, Download> downloads = new HashMap<String, Download>();
 
 	public ImageFetcher(Context context, int imageWidth, int imageHeight) {
 		super(context, imageWidth, imageHeight);
@@ -56,11 +60,12 @@ public class ImageFetcher extends ImageResizer {
 	 * @param context
 	 *            上下文
 	 * @param imageThumSize
-	 *            图片的大小 dp
+	 *            图片的大小 dp，解码时向上取到{@link ImageCache#renditionBucket(int, int)}的档位，
+	 *            例如100按128解码
 	 * @param imageCacheDir
 	 *            图片环迅的大小
 	 * @param memCacheSize
-	 *            图片缓存控件的大小
+	 *            图片缓存控件的大小，占可用内存的比例，包括位图池和编码数据缓存
 	 * @return
 	 */
 	public static synchronized ImageFetcher getInstance(Context context,
@@ -74,9 +79,21 @@ public class ImageFetcher extends ImageResizer {
 							context, imageCacheDir);
 					// 设置缓存大小为程序可用内存的比例 如0.25f就是25%
 					cacheParams.setMemCacheSizePercent(context, memCacheSize);
+					// 磁盘缓存初始化期间不阻塞加载线程
+					cacheParams.nonBlockingDiskStartup = true;
+					// 按图片选择磁盘缓存编码，未缩放的图片直接保存下载的数据
+					cacheParams.diskCacheEncoding = ImageCache.ENCODING_AUTO;
+					// 从内存缓存中划出位图池（解码时复用淘汰的位图）和编码数据缓存（重新滑回时不读磁盘），
+					// 三者一共使用memCacheSize
+					cacheParams.splitMemCacheSize(MEM_CACHE_POOL_PERCENT, MEM_CACHE_ENCODED_PERCENT);
+					// 快速滑动时只出现一次的图片不挤掉常用的图标
+					cacheParams.memCacheAdmissionFilter = true;
 					// ImageFetcher负责异步加载图片到ImageView
 					imageFetcher = new ImageFetcher(context, imageThumSize, 100);
-					imageFetcher.addImageCache(new ImageCache(cacheParams));
+					final ImageCache imageCache = new ImageCache(cacheParams);
+					// 系统内存不足时按压力等级缩小内存缓存
+					context.getApplicationContext().registerComponentCallbacks(imageCache);
+					imageFetcher.addImageCache(imageCache);
 				}
 			}
 		}
@@ -90,13 +107,13 @@ public class ImageFetcher extends ImageResizer {
 	 * @param context
 	 *            上下文
 	 * @param imageWidth
-	 *            处理后的宽度
+	 *            处理后的宽度，解码时与高度一起向上取到{@link ImageCache#renditionBucket(int, int)}的档位
 	 * @param imageHeight
 	 *            处理后的高度
 	 * @param imageCacheDir
 	 *            文件夹名称
 	 * @param memCacheSize
-	 *            缓存区的大小
+	 *            缓存区的大小，占可用内存的比例，包括位图池和编码数据缓存
 	 * @return
 	 */
 	public static synchronized ImageFetcher getInstance(Context context,
@@ -111,10 +128,22 @@ public class ImageFetcher extends ImageResizer {
 							context, imageCacheDir);
 					// 设置缓存大小为程序可用内存的比例 如0.25f就是25%
 					cacheParams.setMemCacheSizePercent(context, memCacheSize);
+					// 磁盘缓存初始化期间不阻塞加载线程
+					cacheParams.nonBlockingDiskStartup = true;
+					// 按图片选择磁盘缓存编码，未缩放的图片直接保存下载的数据
+					cacheParams.diskCacheEncoding = ImageCache.ENCODING_AUTO;
+					// 从内存缓存中划出位图池（解码时复用淘汰的位图）和编码数据缓存（重新滑回时不读磁盘），
+					// 三者一共使用memCacheSize
+					cacheParams.splitMemCacheSize(MEM_CACHE_POOL_PERCENT, MEM_CACHE_ENCODED_PERCENT);
+					// 快速滑动时只出现一次的图片不挤掉常用的图标
+					cacheParams.memCacheAdmissionFilter = true;
 					// ImageFetcher负责异步加载图片到ImageView
 					imageFetcher1 = new ImageFetcher(context, imageWidth,
 							imageHeight);
-					imageFetcher1.addImageCache(new ImageCache(cacheParams));
+					final ImageCache imageCache = new ImageCache(cacheParams);
+					// 系统内存不足时按压力等级缩小内存缓存
+					context.getApplicationContext().registerComponentCallbacks(imageCache);
+					imageFetcher1.addImageCache(imageCache);
 				}
 			}
 		}
@@ -135,83 +164,24 @@ public class ImageFetcher extends ImageResizer {
 	@Override
 	protected void initDiskCacheInternal() {
 		super.initDiskCacheInternal();
-		initHttpDiskCache();
-	}
-
-	private void initHttpDiskCache() {
-		if (!httpCacheDir.exists()) {
-			httpCacheDir.mkdirs();
-		}
-		synchronized (httpDiskCacheLock) {
-			if (httpCacheDir.getUsableSpace() > HTTP_CACHE_SIZE) {
-				try {
-					httpDiskCache = DiskLruCache.open(httpCacheDir, 1, 1,
-							HTTP_CACHE_SIZE);
-					LogManager.writeLog(LogManager.DEBUG_LEVEL_INFO, TAG,
-							"HTTP cache initialized");
-				} catch (IOException e) {
-					httpDiskCache = null;
-				}
-			}
-			httpDiskCacheStarting = false;
-			httpDiskCacheLock.notifyAll();
-		}
+		deleteLegacyHttpCache();
 	}
 
-	@Override
-	protected void clearCacheInternal() {
-		super.clearCacheInternal();
-		synchronized (httpDiskCacheLock) {
-			if (httpDiskCache != null && !httpDiskCache.isClosed()) {
-				try {
-					httpDiskCache.delete();
-					LogManager.writeLog(LogManager.DEBUG_LEVEL_INFO, TAG,
-							"HTTP cache cleared");
-				} catch (IOException e) {
-					LogManager.writeLog(LogManager.DEBUG_LEVEL_ERROR, TAG,
-							"clearCacheInternal:", e);
-				}
-				httpDiskCache = null;
-				httpDiskCacheStarting = true;
-				initHttpDiskCache();
-			}
-		}
-	}
-
-	@Override
-	protected void flushCacheInternal() {
-		super.flushCacheInternal();
-		synchronized (httpDiskCacheLock) {
-			if (httpDiskCache != null) {
-				try {
-					httpDiskCache.flush();
-					LogManager.writeLog(LogManager.DEBUG_LEVEL_INFO, TAG,
-							"HTTP cache flushed");
-				} catch (IOException e) {
-					LogManager.writeLog(LogManager.DEBUG_LEVEL_ERROR, TAG,
-							"flush:", e);
-				}
-			}
+	/**
+	 * 删除旧版本留下的http缓存目录。
+	 */
+	private void deleteLegacyHttpCache() {
+		if (httpCacheDir == null || !httpCacheDir.exists()) {
+			return;
 		}
-	}
-
-	@Override
-	protected void closeCacheInternal() {
-		super.closeCacheInternal();
-		synchronized (httpDiskCacheLock) {
-			if (httpDiskCache != null) {
-				try {
-					if (!httpDiskCache.isClosed()) {
-						httpDiskCache.close();
-						httpDiskCache = null;
-						LogManager.writeLog(LogManager.DEBUG_LEVEL_INFO, TAG,
-								"HTTP cache closed");
-					}
-				} catch (IOException e) {
-					LogManager.writeLog(LogManager.DEBUG_LEVEL_ERROR, TAG,
-							"closeCacheInternal:", e);
-				}
-			}
+		try {
+			DiskLruCache.deleteContents(httpCacheDir);
+			httpCacheDir.delete();
+			LogManager.writeLog(LogManager.DEBUG_LEVEL_INFO, TAG,
+					"Legacy HTTP cache deleted");
+		} catch (IOException e) {
+			LogManager.writeLog(LogManager.DEBUG_LEVEL_ERROR, TAG,
+					"deleteLegacyHttpCache:", e);
 		}
 	}
 
@@ -225,80 +195,93 @@ public class ImageFetcher extends ImageResizer {
 	 */
 	@Override
 	protected Bitmap processBitmap(String url) {
+		final ProcessedBitmap processed = processBitmapWithSource(url,
+				imageWidth, imageHeight);
+		return processed != null ? processed.bitmap : null;
+	}
+
+	/**
+	 * 下载并解码图片，同时返回下载的原始数据，由ImageCache和处理后的图片保存在同一个磁盘缓存entry中。
+	 * 
+	 * @param url
+	 *            图片的URL
+	 * @param reqWidth
+	 *            目标宽度
+	 * @param reqHeight
+	 *            目标高度
+	 * @return 处理结果，失败时返回null
+	 */
+	@Override
+	protected ProcessedBitmap processBitmapWithSource(String url, int reqWidth,
+			int reqHeight) {
 		LogManager.writeLog(LogManager.DEBUG_LEVEL_INFO, TAG, "processBitmap:"
 				+ url);
+		final byte[] data = download(url);
+		if (data == null) {
+			return null;
+		}
+		return decodeSource(data, reqWidth, reqHeight);
+	}
 
-		final String key = ImageCache.hashKeyForDisk(url);
-		FileDescriptor fileDescriptor = null;
-		FileInputStream fileInputStream = null;
-		DiskLruCache.Snapshot snapshot;
-		synchronized (httpDiskCacheLock) {
-			// Wait for disk cache to initialize
-			while (httpDiskCacheStarting) {
-				try {
-					httpDiskCacheLock.wait();
-				} catch (InterruptedException e) {
-					LogManager.writeLog(LogManager.DEBUG_LEVEL_ERROR, TAG,
-							"processBitmap", e);
-				}
-			}
+	/**
+	 * 下载在网络线程池中进行，解码在解码线程池中进行。
+	 */
+	@Override
+	protected boolean fetchesSource() {
+		return true;
+	}
 
-			if (httpDiskCache != null) {
-				try {
-					snapshot = httpDiskCache.get(key);
-					if (snapshot == null) {
-						LogManager
-								.writeLog(LogManager.DEBUG_LEVEL_INFO, TAG,
-										"processBitmap, not found in http cache, downloading...");
-						DiskLruCache.Editor editor = httpDiskCache.edit(key);
-						if (editor != null) {
-							if (downloadUrlToStream(url,
-									editor.newOutputStream(DISK_CACHE_INDEX))) {
-								editor.commit();
-							} else {
-								editor.abort();
-							}
-						}
-						snapshot = httpDiskCache.get(key);
-					}
-					if (snapshot != null) {
-						fileInputStream = (FileInputStream) snapshot
-								.getInputStream(DISK_CACHE_INDEX);
-						fileDescriptor = fileInputStream.getFD();
-					}
-				} catch (IOException e) {
-					LogManager.writeLog(LogManager.DEBUG_LEVEL_ERROR, TAG,
-							"processBitmap:", e);
-				} catch (IllegalStateException e) {
-					LogManager.writeLog(LogManager.DEBUG_LEVEL_ERROR, TAG,
-							"processBitmap:", e);
-				} finally {
-					if (fileDescriptor == null && fileInputStream != null) {
-						try {
-							fileInputStream.close();
-						} catch (IOException e) {
-							LogManager.writeLog(LogManager.DEBUG_LEVEL_ERROR,
-									TAG, "processBitmap", e);
-						}
-					}
-				}
+	@Override
+	protected byte[] fetchSource(String url) {
+		LogManager.writeLog(LogManager.DEBUG_LEVEL_INFO, TAG, "fetchSource:"
+				+ url);
+		return download(url);
+	}
+
+	/**
+	 * 下载URL的数据到内存。同一个URL同时只会下载一次，其余线程等待并共享该次下载的结果。
+	 * 
+	 * @param url
+	 *            图片的URL
+	 * @return 下载的数据，失败时返回null
+	 */
+	private byte[] download(String url) {
+		Download download;
+		boolean downloader = false;
+		synchronized (downloads) {
+			download = downloads.get(url);
+			if (download == null) {
+				download = new Download();
+				downloads.put(url, download);
+				downloader = true;
 			}
 		}
 
-		Bitmap bitmap = null;
-		if (fileDescriptor != null) {
-			bitmap = decodeSampledBitmapFromDescriptor(fileDescriptor,
-					imageWidth, imageHeight);
-		}
-		if (fileInputStream != null) {
+		if (!downloader) {
 			try {
-				fileInputStream.close();
-			} catch (IOException e) {
+				download.latch.await();
+			} catch (InterruptedException e) {
 				LogManager.writeLog(LogManager.DEBUG_LEVEL_ERROR, TAG,
-						"processBitmap", e);
+						"download", e);
+				return null;
 			}
+			return download.data;
 		}
-		return bitmap;
+
+		try {
+			LogManager.writeLog(LogManager.DEBUG_LEVEL_INFO, TAG,
+					"processBitmap, not found in disk cache, downloading...");
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			if (downloadUrlToStream(url, out)) {
+				download.data = out.toByteArray();
+			}
+		} finally {
+			synchronized (downloads) {
+				downloads.remove(url);
+			}
+			download.latch.countDown();
+		}
+		return download.data;
 	}
 
 	/**
@@ -348,4 +331,12 @@ public class ImageFetcher extends ImageResizer {
 		}
 		return false;
 	}
+
+	/**
+	 * 一次进行中的下载，完成后data为下载的数据（失败时为null）。
+	 */
+	private static final class Download {
+		final CountDownLatch latch = new CountDownLatch(1);
+		byte[] data;
+	}
 }
@@ -6,6 +6,7 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 
 import java.io.FileDescriptor;
+import java.nio.ByteBuffer;
 
 /**
  * 可以根据设置对图片进行大小调节，避免由于图片太大导致设备性能降低
@@ -34,6 +35,31 @@ public abstract class ImageResizer extends ImageWorker {
         setImageSize(size, size);
     }
 
+    @Override
+    protected int getDefaultWidth() {
+        return imageWidth;
+    }
+
+    @Override
+    protected int getDefaultHeight() {
+        return imageHeight;
+    }
+
+    /**
+     * 按目标尺寸采样解码原始数据，采样率大于1时认为位图经过缩放。
+     */
+    @Override
+    protected ProcessedBitmap decodeSource(byte[] data, int reqWidth, int reqHeight) {
+        final ImageCache imageCache = getImageCache();
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        final Bitmap bitmap = decodeSampledBitmapFromByteArray(data, reqWidth, reqHeight, options,
+                imageCache != null ? imageCache.getBitmapPool() : null);
+        if (bitmap == null) {
+            return null;
+        }
+        return new ProcessedBitmap(bitmap, data, options.inSampleSize > 1);
+    }
+
     /**
      * Decode and sample down a bitmap from resources to the requested width and height.
      *
@@ -110,6 +136,211 @@ public abstract class ImageResizer extends ImageWorker {
         return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
     }
 
+    /**
+     * Decode and sample down a bitmap from a byte array to the requested width and height.
+     *
+     * @param data The encoded image data
+     * @param reqWidth The requested width of the resulting bitmap
+     * @param reqHeight The requested height of the resulting bitmap
+     * @return A bitmap sampled down from the original with the same aspect ratio and dimensions
+     *         that are equal to or greater than the requested width and height
+     */
+    public static Bitmap decodeSampledBitmapFromByteArray(byte[] data,
+            int reqWidth, int reqHeight) {
+        return decodeSampledBitmapFromByteArray(data, reqWidth, reqHeight,
+                new BitmapFactory.Options());
+    }
+
+    /**
+     * Decode and sample down a bitmap from a byte array to the requested width and height.
+     * The chosen inSampleSize and the out* fields are left in {@code options}.
+     *
+     * @param data The encoded image data
+     * @param reqWidth The requested width of the resulting bitmap
+     * @param reqHeight The requested height of the resulting bitmap
+     * @param options The options used for decoding
+     * @return A bitmap sampled down from the original with the same aspect ratio and dimensions
+     *         that are equal to or greater than the requested width and height
+     */
+    public static Bitmap decodeSampledBitmapFromByteArray(byte[] data,
+            int reqWidth, int reqHeight, BitmapFactory.Options options) {
+        return decodeSampledBitmapFromByteArray(data, reqWidth, reqHeight, options, null);
+    }
+
+    /**
+     * Decode and sample down a bitmap from a byte array to the requested width and height,
+     * reusing a bitmap from {@code pool} when one of a suitable size is available.
+     *
+     * @param data The encoded image data
+     * @param reqWidth The requested width of the resulting bitmap
+     * @param reqHeight The requested height of the resulting bitmap
+     * @param options The options used for decoding
+     * @param pool The pool to draw a reusable bitmap from, may be null
+     * @return A bitmap sampled down from the original with the same aspect ratio and dimensions
+     *         that are equal to or greater than the requested width and height
+     */
+    public static Bitmap decodeSampledBitmapFromByteArray(byte[] data,
+            int reqWidth, int reqHeight, BitmapFactory.Options options, BitmapPool pool) {
+
+        // First decode with inJustDecodeBounds=true to check dimensions
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+
+        // Calculate inSampleSize
+        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+
+        // Decode bitmap with inSampleSize set
+        options.inJustDecodeBounds = false;
+        return decodeReusing(data, 0, data.length, options, pool);
+    }
+
+    /**
+     * Decode and sample down a bitmap from a buffer to the requested width and height.
+     *
+     * @param buffer The encoded image data between position and limit
+     * @param reqWidth The requested width of the resulting bitmap
+     * @param reqHeight The requested height of the resulting bitmap
+     * @return A bitmap sampled down from the original with the same aspect ratio and dimensions
+     *         that are equal to or greater than the requested width and height
+     */
+    public static Bitmap decodeSampledBitmapFromByteBuffer(ByteBuffer buffer,
+            int reqWidth, int reqHeight) {
+        return decodeSampledBitmapFromByteBuffer(buffer, reqWidth, reqHeight,
+                new BitmapFactory.Options());
+    }
+
+    /**
+     * Decode and sample down a bitmap from a buffer to the requested width and height.
+     * The chosen inSampleSize and the out* fields are left in {@code options}.
+     *
+     * @param buffer The encoded image data between position and limit
+     * @param reqWidth The requested width of the resulting bitmap
+     * @param reqHeight The requested height of the resulting bitmap
+     * @param options The options used for decoding
+     * @return A bitmap sampled down from the original with the same aspect ratio and dimensions
+     *         that are equal to or greater than the requested width and height
+     */
+    public static Bitmap decodeSampledBitmapFromByteBuffer(ByteBuffer buffer,
+            int reqWidth, int reqHeight, BitmapFactory.Options options) {
+        return decodeSampledBitmapFromByteBuffer(buffer, reqWidth, reqHeight, options, null);
+    }
+
+    /**
+     * Decode and sample down a bitmap from a buffer to the requested width and height,
+     * reusing a bitmap from {@code pool} when one of a suitable size is available.
+     *
+     * @param buffer The encoded image data between position and limit
+     * @param reqWidth The requested width of the resulting bitmap
+     * @param reqHeight The requested height of the resulting bitmap
+     * @param options The options used for decoding
+     * @param pool The pool to draw a reusable bitmap from, may be null
+     * @return A bitmap sampled down from the original with the same aspect ratio and dimensions
+     *         that are equal to or greater than the requested width and height
+     */
+    public static Bitmap decodeSampledBitmapFromByteBuffer(ByteBuffer buffer,
+            int reqWidth, int reqHeight, BitmapFactory.Options options, BitmapPool pool) {
+        if (!buffer.hasArray()) {
+            return decodeSampledBitmapFromByteArray(toByteArray(buffer), reqWidth, reqHeight,
+                    options, pool);
+        }
+
+        // First decode with inJustDecodeBounds=true to check dimensions
+        options.inJustDecodeBounds = true;
+        decodeByteBuffer(buffer, options);
+
+        // Calculate inSampleSize
+        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+
+        // Decode bitmap with inSampleSize set
+        options.inJustDecodeBounds = false;
+        return decodeReusing(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                buffer.remaining(), options, pool);
+    }
+
+    /**
+     * Decode a bitmap from a buffer. A heap buffer is decoded in place; a direct or mapped
+     * buffer is copied once, since BitmapFactory only accepts byte arrays.
+     *
+     * @param buffer The encoded image data between position and limit
+     * @param options The decode options, may be null
+     * @return The decoded bitmap, or null if the data could not be decoded
+     */
+    public static Bitmap decodeByteBuffer(ByteBuffer buffer, BitmapFactory.Options options) {
+        if (buffer.hasArray()) {
+            return BitmapFactory.decodeByteArray(buffer.array(),
+                    buffer.arrayOffset() + buffer.position(), buffer.remaining(), options);
+        }
+        final byte[] data = toByteArray(buffer);
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+
+    /**
+     * Decode a bitmap from a buffer at its full size, reusing a bitmap from {@code pool}
+     * when one of a suitable size is available.
+     *
+     * @param buffer The encoded image data between position and limit
+     * @param pool The pool to draw a reusable bitmap from, may be null
+     * @return The decoded bitmap, or null if the data could not be decoded
+     */
+    public static Bitmap decodeByteBuffer(ByteBuffer buffer, BitmapPool pool) {
+        if (pool == null) {
+            return decodeByteBuffer(buffer, (BitmapFactory.Options) null);
+        }
+        final byte[] data;
+        final int offset;
+        if (buffer.hasArray()) {
+            data = buffer.array();
+            offset = buffer.arrayOffset() + buffer.position();
+        } else {
+            data = toByteArray(buffer);
+            offset = 0;
+        }
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, offset, buffer.remaining(), options);
+        options.inJustDecodeBounds = false;
+        return decodeReusing(data, offset, buffer.remaining(), options, pool);
+    }
+
+    /**
+     * Decode with {@code options}, drawing {@link BitmapFactory.Options#inBitmap} from
+     * {@code pool}. The out* fields and inSampleSize must already be set. If the pooled bitmap
+     * cannot be reused the data is decoded again into a new bitmap.
+     */
+    private static Bitmap decodeReusing(byte[] data, int offset, int length,
+            BitmapFactory.Options options, BitmapPool pool) {
+        if (pool == null) {
+            return BitmapFactory.decodeByteArray(data, offset, length, options);
+        }
+        pool.addInBitmapOptions(options);
+        try {
+            return BitmapFactory.decodeByteArray(data, offset, length, options);
+        } catch (IllegalArgumentException e) {
+            if (options.inBitmap == null) {
+                throw e;
+            }
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(data, offset, length, options);
+        }
+    }
+
+    /**
+     * Returns the bytes between position and limit of {@code buffer}. The backing array is
+     * returned without copying when it holds exactly those bytes.
+     *
+     * @param buffer The buffer to read
+     * @return The bytes of the buffer
+     */
+    public static byte[] toByteArray(ByteBuffer buffer) {
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0
+                && buffer.remaining() == buffer.array().length) {
+            return buffer.array();
+        }
+        final byte[] data = new byte[buffer.remaining()];
+        buffer.duplicate().get(data);
+        return data;
+    }
+
     /**
      * Calculate an inSampleSize for use in a {@link BitmapFactory.Options} object when decoding
      * bitmaps using the decode* methods from {@link BitmapFactory}. This implementation calculates
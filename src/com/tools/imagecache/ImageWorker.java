@@ -5,15 +5,22 @@ import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.os.Handler;
 import android.os.Looper;
-import android.os.Message;
 import android.text.TextUtils;
+import android.view.Choreographer;
 import android.widget.ImageView;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.tools.thread.ImageCacheThreadPool;
+import com.tools.thread.PriorityRunnable;
 import com.tools.utils.LogManager;
 
 
@@ -23,13 +30,29 @@ public abstract class ImageWorker {
     protected Resources resources;
     
     private ImageCache imageCache;
-
-    private final Object mPauseWorkLock = new Object();
-    
-    protected boolean mPauseWork = false;
     
-    protected static final List<String> LOADING_URLLIST = new ArrayList<String>();
+    /**
+     * 正在加载的请求，key为{@link ImageCache#renditionKey(String, int)}。
+     * 同一个URL和尺寸档位只有一个加载任务，后来的ImageView挂到已有的任务上，加载完成后统一显示。
+     */
+    private static final ConcurrentHashMap<String, PendingLoad> IN_FLIGHT =
+    		new ConcurrentHashMap<String, PendingLoad>();
+
+    /**
+     * 每个ImageView当前绑定的加载。ListView/GridView复用VIEW并绑定新的URL时，旧的绑定被解除，
+     * 结果到达时如果VIEW已经绑定到别的请求则丢弃。
+     */
+    private static final Map<ImageView, PendingLoad> BINDINGS =
+    		Collections.synchronizedMap(new WeakHashMap<ImageView, PendingLoad>());
+
+    private static final DeliveryQueue DELIVERY_QUEUE = new DeliveryQueue();
     
+    /** 预取只下载原始数据写入磁盘缓存，不解码 */
+    public static final int PREFETCH_TIER_DISK = 0;
+
+    /** 预取解码到内存缓存 */
+    public static final int PREFETCH_TIER_MEMORY = 1;
+
     private static final int MESSAGE_CLEAR = 0;
     private static final int MESSAGE_INIT_DISK_CACHE = 1;
     private static final int MESSAGE_FLUSH = 2;
@@ -43,67 +66,273 @@ public abstract class ImageWorker {
     	this.imageCache = imageCache;
     }
     
+    protected ImageCache getImageCache() {
+    	return imageCache;
+    }
+    
     protected abstract Bitmap processBitmap(String url);
+
+    /**
+     * 处理图片，同时返回原始编码数据，由磁盘缓存和处理后的图片保存在同一个entry中；
+     * 图片未经缩放时磁盘缓存可以只保存原始数据而不必重新编码。
+     * 默认实现只调用{@link #processBitmap(String)}，不提供原始数据。
+     * @param url 图片的URL
+     * @param reqWidth 目标宽度，{@link Integer#MAX_VALUE}表示不缩放
+     * @param reqHeight 目标高度，{@link Integer#MAX_VALUE}表示不缩放
+     * @return 处理结果，失败时返回null
+     */
+    protected ProcessedBitmap processBitmapWithSource(String url, int reqWidth, int reqHeight) {
+    	final Bitmap bitmap = processBitmap(url);
+    	return bitmap != null ? new ProcessedBitmap(bitmap, null, true) : null;
+    }
     
-    public synchronized void loadImage(String url, ImageView imageView) {
+    /**
+     * 是否把加载拆分成网络和解码两个阶段。返回true时在网络线程池中调用{@link #fetchSource(String)}，
+     * 在解码线程池中调用{@link #decodeSource(byte[], int, int)}；否则在网络线程池中调用
+     * {@link #processBitmapWithSource(String, int, int)}完成全部处理。
+     */
+    protected boolean fetchesSource() {
+    	return false;
+    }
+
+    /**
+     * 网络阶段：获取图片的原始编码数据。
+     * @param url 图片的URL
+     * @return 原始数据，失败时返回null
+     */
+    protected byte[] fetchSource(String url) {
+    	return null;
+    }
+
+    /**
+     * 解码阶段：把原始数据解码为不小于目标尺寸的位图。
+     * @param data 原始数据
+     * @param reqWidth 目标宽度，{@link Integer#MAX_VALUE}表示不缩放
+     * @param reqHeight 目标高度，{@link Integer#MAX_VALUE}表示不缩放
+     * @return 处理结果，失败时返回null
+     */
+    protected ProcessedBitmap decodeSource(byte[] data, int reqWidth, int reqHeight) {
+    	return null;
+    }
+
+    /**
+     * loadImage未指定尺寸时使用的目标宽度，0表示不缩放。
+     */
+    protected int getDefaultWidth() {
+    	return 0;
+    }
+
+    /**
+     * loadImage未指定尺寸时使用的目标高度，0表示不缩放。
+     */
+    protected int getDefaultHeight() {
+    	return 0;
+    }
+
+    public void loadImage(String url, ImageView imageView) {
+    	loadImage(url, imageView, getDefaultWidth(), getDefaultHeight());
+    }
+
+    /**
+     * 按指定的目标尺寸加载图片。尺寸向上取到{@link ImageCache#renditionBucket(int, int)}的档位，
+     * 同一个URL的不同档位共用一次下载和同一个磁盘缓存entry。
+     * 档位为64/128/256/512/1024/2048，解码出的图片按档位而不是按请求尺寸计算，
+     * 例如请求100x100实际得到128x128左右的图片，占用的内存约为精确尺寸的1.6倍；
+     * 超过2048的尺寸按原图处理。需要精确控制内存时请直接传档位上的尺寸。
+     * 加载按{@link ImageCacheThreadPool#PRIORITY_VISIBLE}调度，可以用{@link #setPriority(ImageView, int)}调整。
+     * @param url 图片的URL
+     * @param imageView 显示图片的控件
+     * @param reqWidth 目标宽度，0表示不缩放
+     * @param reqHeight 目标高度，0表示不缩放
+     */
+    public void loadImage(String url, ImageView imageView, int reqWidth,
+    		int reqHeight) {
         if (TextUtils.isEmpty(url)) {
         	LogManager.writeLog(LogManager.DEBUG_LEVEL_INFO, TAG, "url is null");
             return;
         }
 
+        final int bucket = ImageCache.renditionBucket(reqWidth, reqHeight);
+        final String requestKey = ImageCache.renditionKey(url, bucket);
         Bitmap bitmap = null;
         if (imageCache != null) {
-            bitmap = imageCache.getBitmapFromMemCache(url);
+            bitmap = imageCache.getBitmapFromMemCache(url, bucket);
         }
 
         if (bitmap != null) {
             // 图片在缓存中存在则直接使用
         	LogManager.writeLog(LogManager.DEBUG_LEVEL_INFO, TAG, "bitmap is not null");
+        	cancelWork(imageView);
+        	BitmapPool.setDisplayed(imageView, bitmap);
             imageView.setImageBitmap(bitmap);
-        }else{
-        	synchronized(this){
-            	if (!LOADING_URLLIST.contains(url)) {
-            		LogManager.writeLog(LogManager.DEBUG_LEVEL_INFO, TAG, "bitmap is loading");
-                	LOADING_URLLIST.add(url);
-                    ImageCacheThreadPool.execute(new BitmapWorkerTask(imageView, url));
-                }
-            }
+            return;
+        }
+
+        final PendingLoad bound = BINDINGS.get(imageView);
+        if (bound != null && bound.requestKey.equals(requestKey) && bound.attach(imageView)) {
+        	// 重复绑定到同一个请求
+        	return;
+        }
+        cancelWork(imageView);
+
+        while (true) {
+        	final PendingLoad pending = IN_FLIGHT.get(requestKey);
+        	if (pending != null) {
+        		// 已有相同的加载任务，挂到该任务上等待结果。先绑定再挂上，
+        		// 任务在两步之间完成时分发结果能看到绑定，图片不会被丢弃
+        		BINDINGS.put(imageView, pending);
+        		if (pending.attach(imageView)) {
+        			LogManager.writeLog(LogManager.DEBUG_LEVEL_INFO, TAG, "bitmap is loading");
+        			if (pending.task.getPriority() > ImageCacheThreadPool.PRIORITY_VISIBLE) {
+        				ImageCacheThreadPool.updatePriority(pending.task,
+        						ImageCacheThreadPool.PRIORITY_VISIBLE);
+        			}
+        			return;
+        		}
+        		// 任务刚刚结束，解除绑定并移除后重试
+        		unbindIfCurrent(imageView, pending);
+        		IN_FLIGHT.remove(requestKey, pending);
+        		continue;
+        	}
+        	final PendingLoad created = new PendingLoad(requestKey);
+        	created.attach(imageView);
+        	created.task = new BitmapWorkerTask(url, bucket, created,
+        			ImageCacheThreadPool.PRIORITY_VISIBLE);
+        	if (IN_FLIGHT.putIfAbsent(requestKey, created) == null) {
+        		BINDINGS.put(imageView, created);
+        		ImageCacheThreadPool.execute(created.task);
+        		return;
+        	}
         }
-        
     }
     
     /**
-     * 特殊方法，仅用于FirstPageAdapter。
-     * APP启动时，第一与第二个页签均会加载已安装应用，且第二个页面加载早于第一个页面（viewPager机制）
-     * ，此处就出现了不同VIEW近乎同时下载同一张图片的情况，此方法放开了同一张图片不能被多次下载的限制。
+     * 原用于同一张图片需要同时显示在多个VIEW上的情况（如FirstPageAdapter中ViewPager的前两个页签）。
+     * {@link #loadImage(String, ImageView)}现在会把结果分发给所有等待的VIEW，不再需要重复下载。
      * @param url
      * @param imageView
+     * @deprecated 使用{@link #loadImage(String, ImageView)}
      */
-    public synchronized void loadImageNoSync(String url, ImageView imageView) {
-        if (TextUtils.isEmpty(url)) {
-            return;
-        }
+    @Deprecated
+    public void loadImageNoSync(String url, ImageView imageView) {
+        loadImage(url, imageView);
+    }
 
-        Bitmap bitmap = null;
-        if (imageCache != null) {
-            bitmap = imageCache.getBitmapFromMemCache(url);
-        }
+    /**
+     * 调整imageView当前加载的优先级，例如VIEW滑出屏幕时降为{@link ImageCacheThreadPool#PRIORITY_PREFETCH}，
+     * 重新可见时恢复为{@link ImageCacheThreadPool#PRIORITY_VISIBLE}。加载已经开始时不起作用。
+     * @param imageView
+     * @param priority ImageCacheThreadPool.PRIORITY_*
+     */
+    public void setPriority(ImageView imageView, int priority) {
+    	final PendingLoad pending = BINDINGS.get(imageView);
+    	if (pending != null) {
+    		ImageCacheThreadPool.updatePriority(pending.task, priority);
+    	}
+    }
 
-        if (bitmap != null) {
-            // 图片在缓存中存在则直接使用
-            imageView.setImageBitmap(bitmap);
-        }else{
-            ImageCacheThreadPool.execute(new BitmapWorkerTask(imageView, url));
-        }
+    /**
+     * 取消imageView对正在加载的图片的等待。其他VIEW仍在等待同一张图片时加载照常进行，
+     * 结果仍然会写入缓存；没有VIEW等待且还没开始下载或解码的加载会被放弃。
+     */
+    public void cancelWork(ImageView imageView) {
+    	final PendingLoad pending = BINDINGS.remove(imageView);
+    	if (pending != null) {
+    		pending.detach(imageView);
+    	}
+    }
+
+    /**
+     * 预取即将显示的图片，解码到内存缓存。
+     * @see #prefetch(Collection, int, int, int)
+     */
+    public PrefetchGroup prefetch(Collection<String> urls, int size, int priority) {
+    	return prefetch(urls, size, priority, PREFETCH_TIER_MEMORY);
     }
 
+    /**
+     * 预取即将显示的图片（例如列表的下一页），不需要ImageView。已经在加载的图片不会重复加载，
+     * 之后对同一张图片调用loadImage会直接挂到预取的加载上。
+     * 越靠前的URL越先加载。一次最多新提交{@link ImageCacheThreadPool#THREAD_QUEUE_FORIMAGECACHE}个加载，
+     * 超出的URL和之后因队列已满被丢弃的URL（总是最靠后的）通过{@link PrefetchGroup#getDroppedUrls()}返回，
+     * 需要时可以稍后再次预取。
+     * @param urls 图片的URL，按预计显示的先后排列
+     * @param size 目标尺寸
+     * @param priority ImageCacheThreadPool.PRIORITY_*，通常为PRIORITY_PREFETCH或PRIORITY_BACKGROUND
+     * @param tier {@link #PREFETCH_TIER_DISK}只写入磁盘缓存；{@link #PREFETCH_TIER_MEMORY}解码到内存缓存
+     * @return 预取组，切换页面时调用{@link PrefetchGroup#cancel()}放弃尚未开始下载或解码的加载
+     */
+    public PrefetchGroup prefetch(Collection<String> urls, int size, int priority, int tier) {
+    	final PrefetchGroup group = new PrefetchGroup(tier);
+    	final int bucket = ImageCache.renditionBucket(size, size);
+    	final List<String> created = new ArrayList<String>();
+    	for (String url : urls) {
+    		if (TextUtils.isEmpty(url)) {
+    			continue;
+    		}
+    		if (tier == PREFETCH_TIER_MEMORY && imageCache != null
+    				&& imageCache.getBitmapFromMemCache(url, bucket) != null) {
+    			continue;
+    		}
+    		if (created.contains(url)
+    				|| attachPrefetch(ImageCache.renditionKey(url, bucket), group, priority)) {
+    			continue;
+    		}
+    		if (created.size() < ImageCacheThreadPool.THREAD_QUEUE_FORIMAGECACHE) {
+    			created.add(url);
+    		} else {
+    			// 超出队列的预算，提交了也会被丢弃
+    			group.addDropped(url);
+    		}
+    	}
+    	// 同一优先级内后提交的先执行、先提交的先被丢弃，倒序提交使靠前的URL先加载、靠后的先被丢弃
+    	for (int i = created.size() - 1; i >= 0; i--) {
+    		final String url = created.get(i);
+    		final String requestKey = ImageCache.renditionKey(url, bucket);
+    		while (true) {
+    			final PendingLoad pending = new PendingLoad(requestKey);
+    			pending.attach(group);
+    			pending.task = new BitmapWorkerTask(url, bucket, pending, priority);
+    			if (IN_FLIGHT.putIfAbsent(requestKey, pending) == null) {
+    				ImageCacheThreadPool.execute(pending.task);
+    				break;
+    			}
+    			if (attachPrefetch(requestKey, group, priority)) {
+    				break;
+    			}
+    		}
+    	}
+    	return group;
+    }
+
+    /**
+     * 把预取组挂到正在进行的加载上。
+     * @return 没有可以挂上的加载时返回false
+     */
+    private static boolean attachPrefetch(String requestKey, PrefetchGroup group, int priority) {
+    	while (true) {
+    		final PendingLoad pending = IN_FLIGHT.get(requestKey);
+    		if (pending == null) {
+    			return false;
+    		}
+    		if (pending.attach(group)) {
+    			if (pending.task.getPriority() > priority) {
+    				ImageCacheThreadPool.updatePriority(pending.task, priority);
+    			}
+    			return true;
+    		}
+    		IN_FLIGHT.remove(requestKey, pending);
+    	}
+    }
+
+    /**
+     * 暂停或恢复图片的下载和解码，例如在列表快速滑动期间暂停。
+     * 暂停期间请求留在网络和解码线程池的队列中，不占用线程；缓存命中仍然会显示。
+     * 暂停作用于所有ImageWorker共用的线程池。
+     * @param pauseWork
+     */
     public void setPauseWork(boolean pauseWork) {
-        synchronized (mPauseWorkLock) {
-            mPauseWork = pauseWork;
-            if (!mPauseWork) {
-                mPauseWorkLock.notifyAll();
-            }
-        }
+        ImageCacheThreadPool.setPaused(pauseWork);
     }
     
     protected void initDiskCacheInternal() {
@@ -148,66 +377,467 @@ public abstract class ImageWorker {
     	ImageCacheThreadPool.execute(new CacheAsyncTask(MESSAGE_CLOSE));
     }
     
-    private class BitmapWorkerTask implements Runnable {
+    /**
+     * 一组预取请求，可以整体取消。
+     */
+    public static final class PrefetchGroup {
+    	final int tier;
+    	private volatile boolean cancelled;
+    	private final List<String> dropped = new ArrayList<String>();
+
+    	PrefetchGroup(int tier) {
+    		this.tier = tier;
+    	}
+
+    	/**
+    	 * 取消预取。已经开始下载或解码的图片仍会完成并写入缓存，其余的加载在下一个阶段开始前放弃；
+    	 * 同时被ImageView等待的图片照常加载。
+    	 */
+    	public void cancel() {
+    		cancelled = true;
+    	}
+
+    	public boolean isCancelled() {
+    		return cancelled;
+    	}
+
+    	synchronized void addDropped(String url) {
+    		dropped.add(url);
+    	}
+
+    	/**
+    	 * 返回超出队列预算没有提交、或者排队时因线程池队列已满被丢弃的URL。
+    	 */
+    	public synchronized List<String> getDroppedUrls() {
+    		return new ArrayList<String>(dropped);
+    	}
+    }
+
+    /**
+     * 一个正在进行的加载，以及所有等待其结果的ImageView和预取组。
+     */
+    private static final class PendingLoad {
+    	final String requestKey;
+    	/** 执行加载的任务，在放入IN_FLIGHT之前设置 */
+    	PriorityRunnable task;
+    	private final List<WeakReference<ImageView>> targets =
+    			new ArrayList<WeakReference<ImageView>>(1);
+    	private final List<PrefetchGroup> groups = new ArrayList<PrefetchGroup>(1);
+    	private boolean completed;
+
+    	PendingLoad(String requestKey) {
+    		this.requestKey = requestKey;
+    	}
+
+    	/**
+    	 * 添加一个预取组。
+    	 * @return 加载已经结束时返回false
+    	 */
+    	synchronized boolean attach(PrefetchGroup group) {
+    		if (completed) {
+    			return false;
+    		}
+    		groups.add(group);
+    		return true;
+    	}
+
+    	/**
+    	 * 移除已回收的VIEW和已取消的预取组。
+    	 */
+    	private void prune() {
+    		detach(null);
+    		final Iterator<PrefetchGroup> it = groups.iterator();
+    		while (it.hasNext()) {
+    			if (it.next().isCancelled()) {
+    				it.remove();
+    			}
+    		}
+    	}
+
+    	/**
+    	 * 是否只有只写磁盘的预取在等待。
+    	 */
+    	synchronized boolean isDiskOnly() {
+    		prune();
+    		if (!targets.isEmpty() || groups.isEmpty()) {
+    			return false;
+    		}
+    		for (PrefetchGroup group : groups) {
+    			if (group.tier != PREFETCH_TIER_DISK) {
+    				return false;
+    			}
+    		}
+    		return true;
+    	}
+
+    	/**
+    	 * 只有只写磁盘的预取在等待时结束加载，此后attach返回false。
+    	 * @return 是否只需要写入磁盘缓存
+    	 */
+    	synchronized boolean completeIfDiskOnly() {
+    		if (!isDiskOnly()) {
+    			return false;
+    		}
+    		completed = true;
+    		groups.clear();
+    		return true;
+    	}
+
+    	/**
+    	 * 添加一个等待结果的ImageView。
+    	 * @return 加载已经结束时返回false
+    	 */
+    	synchronized boolean attach(ImageView imageView) {
+    		if (completed) {
+    			return false;
+    		}
+    		for (WeakReference<ImageView> target : targets) {
+    			if (target.get() == imageView) {
+    				return true;
+    			}
+    		}
+    		targets.add(new WeakReference<ImageView>(imageView));
+    		return true;
+    	}
+
+    	synchronized void detach(ImageView imageView) {
+    		final Iterator<WeakReference<ImageView>> it = targets.iterator();
+    		while (it.hasNext()) {
+    			final ImageView target = it.next().get();
+    			if (target == null || target == imageView) {
+    				it.remove();
+    			}
+    		}
+    	}
+
+    	/**
+    	 * 没有VIEW或预取组再等待结果时结束加载，此后attach返回false。
+    	 * @return 加载是否被放弃
+    	 */
+    	synchronized boolean abandonIfUnwanted() {
+    		prune();
+    		if (targets.isEmpty() && groups.isEmpty()) {
+    			completed = true;
+    		}
+    		return completed;
+    	}
+
+    	/**
+    	 * 把url记为所有等待的预取组中被丢弃的URL。
+    	 */
+    	synchronized void reportDropped(String url) {
+    		for (PrefetchGroup group : groups) {
+    			group.addDropped(url);
+    		}
+    	}
+
+    	/**
+    	 * 结束加载，此后attach返回false。
+    	 * @return 仍然存活的等待者
+    	 */
+    	synchronized List<ImageView> complete() {
+    		completed = true;
+    		final List<ImageView> live = new ArrayList<ImageView>(targets.size());
+    		for (WeakReference<ImageView> target : targets) {
+    			final ImageView imageView = target.get();
+    			if (imageView != null) {
+    				live.add(imageView);
+    			}
+    		}
+    		targets.clear();
+    		groups.clear();
+    		return live;
+    	}
+    }
+
+    private static final int STAGE_DISK = 0;
+    private static final int STAGE_NETWORK = 1;
+    private static final int STAGE_DECODE = 2;
+
+    /**
+     * 加载任务，依次在磁盘、网络、解码三个阶段的线程池中执行，见{@link ImageCacheThreadPool}。
+     */
+    private class BitmapWorkerTask extends PriorityRunnable {
         private final String url;
-        private final WeakReference<ImageView> imageViewReference;
+        private final int bucket;
+        private final PendingLoad pending;
+        /** 当前阶段，由上一个阶段在提交到下一个线程池之前设置 */
+        private int stage = STAGE_DISK;
+        /** 网络阶段下载的数据 */
+        private byte[] source;
         
-        public BitmapWorkerTask(ImageView imageView,String url) {
+        public BitmapWorkerTask(String url, int bucket, PendingLoad pending, int priority) {
+        	super(priority);
         	this.url = url;
-            this.imageViewReference = new WeakReference<ImageView>(imageView);
+        	this.bucket = bucket;
+        	this.pending = pending;
+        }
+
+        @Override
+        protected void onDropped() {
+        	// 线程池已满，放弃加载，之后的请求会重新提交
+        	final byte[] downloaded = source;
+        	source = null;
+        	final ImageCache cache = imageCache;
+        	if (downloaded != null && cache != null) {
+        		// 解码阶段被丢弃时已经下载的数据仍然写入磁盘缓存，之后的请求不需要重新下载。
+        		// 回调时持有线程池的锁，写入交给磁盘线程池，维护任务不会被丢弃
+        		ImageCacheThreadPool.execute(new Runnable() {
+        			@Override
+        			public void run() {
+        				cache.addSourceToDiskCache(url, downloaded);
+        			}
+        		});
+        	}
+        	pending.reportDropped(url);
+        	pending.complete();
+        	IN_FLIGHT.remove(pending.requestKey, pending);
+        	LogManager.writeLog(LogManager.DEBUG_LEVEL_INFO, TAG, "load dropped: " + url);
+        }
+
+        /**
+         * 所有等待的VIEW都已经绑定到别的请求时放弃加载。
+         */
+        private boolean abandoned() {
+        	if (pending.abandonIfUnwanted()) {
+        		IN_FLIGHT.remove(pending.requestKey, pending);
+        		LogManager.writeLog(LogManager.DEBUG_LEVEL_INFO, TAG, "load abandoned: " + url);
+        		return true;
+        	}
+        	return false;
         }
         
         @Override
 		public void run() {
-			synchronized (mPauseWorkLock) {
-				while (mPauseWork) {
-					try {
-						mPauseWorkLock.wait();
-					} catch (InterruptedException e) {}
-				}
+			switch (stage) {
+				case STAGE_DISK:
+					runDiskStage();
+					break;
+				case STAGE_NETWORK:
+					runNetworkStage();
+					break;
+				case STAGE_DECODE:
+					runDecodeStage();
+					break;
 			}
-			
-			Bitmap bitmap = null;
-			if (imageCache != null) {
-				bitmap = imageCache.getBitmapFromDiskCache(url);
+		}
+
+		/**
+		 * 查找磁盘缓存，未命中时交给网络阶段。
+		 */
+		private void runDiskStage() {
+			if (abandoned()) {
+				return;
 			}
 
-			if (bitmap == null) {
-				bitmap = processBitmap(url);
-			} 
-			
-			if (bitmap != null) {
-				if(imageCache != null){
-					imageCache.addBitmapToCache(url, bitmap);
+			if (imageCache != null) {
+				final Bitmap decoded = imageCache.getBitmapFromEncodedCache(url, bucket);
+				if (decoded != null) {
+					BitmapPool.pin(decoded);
+					imageCache.addBitmapToMemCache(url, bucket, decoded);
+					deliver(decoded);
+					return;
+				}
+				// 磁盘缓存仍在初始化时排队，不占用线程等待
+				if (imageCache.deferUntilDiskCacheStarted(this)) {
+					return;
+				}
+				if (pending.isDiskOnly() && imageCache.isInDiskCache(url)
+						&& pending.completeIfDiskOnly()) {
+					// 只写磁盘的预取，磁盘缓存中已经有了
+					IN_FLIGHT.remove(pending.requestKey, pending);
+					return;
 				}
+				final Bitmap bitmap = imageCache.getBitmapFromDiskCache(url, bucket);
+				if (bitmap != null) {
+					BitmapPool.pin(bitmap);
+					imageCache.addBitmapToMemCache(url, bucket, bitmap);
+					deliver(bitmap);
+					return;
+				}
+			}
 
-				ImageView imageView = imageViewReference.get();
-				if(null != imageView){
-					final MyHandler myHandler = new MyHandler(imageView, bitmap);
-					final Message msg = Message.obtain();
-					myHandler.sendMessage(msg);
+			stage = STAGE_NETWORK;
+			ImageCacheThreadPool.getNetworkExecutor().execute(this);
+		}
+
+		/**
+		 * 下载原始数据后交给解码阶段；子类不提供原始数据时在本阶段完成全部处理。
+		 */
+		private void runNetworkStage() {
+			if (abandoned()) {
+				return;
+			}
+			if (!fetchesSource()) {
+				final int size = ImageCache.renditionSize(bucket);
+				final ProcessedBitmap processed = processBitmapWithSource(url, size, size);
+				finish(processed);
+				return;
+			}
+
+			source = fetchSource(url);
+			if (source == null) {
+				deliver(null);
+				return;
+			}
+			if (imageCache != null && pending.completeIfDiskOnly()) {
+				// 只写磁盘的预取，不需要解码
+				IN_FLIGHT.remove(pending.requestKey, pending);
+				imageCache.addSourceToDiskCache(url, source);
+				source = null;
+				return;
+			}
+			stage = STAGE_DECODE;
+			ImageCacheThreadPool.getDecodeExecutor().execute(this);
+		}
+
+		/**
+		 * 解码下载的数据并写入缓存。
+		 */
+		private void runDecodeStage() {
+			if (abandoned()) {
+				// 不再解码，已经下载的数据仍然写入磁盘缓存
+				if (imageCache != null) {
+					imageCache.addSourceToDiskCache(url, source);
 				}
+				source = null;
+				deliver(null);
+				return;
+			}
+			final int size = ImageCache.renditionSize(bucket);
+			final ProcessedBitmap processed = decodeSource(source, size, size);
+			source = null;
+			finish(processed);
+		}
+
+		private void finish(ProcessedBitmap processed) {
+			if (processed == null) {
+				deliver(null);
+				return;
 			}
+			BitmapPool.pin(processed.bitmap);
+			if (imageCache != null) {
+				imageCache.addBitmapToCache(url, bucket, processed.bitmap, processed.source,
+						processed.scaled);
+			}
+			deliver(processed.bitmap);
+		}
 
-			LOADING_URLLIST.remove(url);
+		/**
+		 * 结束加载并把结果发送给所有等待的VIEW。调用前应先写入内存缓存，之后的请求可以直接命中缓存；
+		 * bitmap不为null时调用方应在写入内存缓存之前{@link BitmapPool#pin}，这里释放该次标记。
+		 */
+		private void deliver(Bitmap bitmap) {
+			final List<ImageView> targets = pending.complete();
+			IN_FLIGHT.remove(pending.requestKey, pending);
+			if (bitmap != null) {
+				for (ImageView imageView : targets) {
+					BitmapPool.pin(bitmap);
+					DELIVERY_QUEUE.post(imageView, pending, bitmap);
+				}
+				BitmapPool.unpin(bitmap);
+			}
 		}
         
     }
     
-    private static class MyHandler extends Handler {
-    	private final ImageView imageView;
-    	private final Bitmap bitmap;
-		public MyHandler(ImageView imageView, Bitmap bitmap) {
-			super(Looper.getMainLooper());
-			this.imageView = imageView;
-			this.bitmap = bitmap;
-		}
-		
-		@Override
-		public void handleMessage(Message msg) {
-			imageView.setImageBitmap(bitmap);
-		}
-	}
+    /**
+     * {@link ImageWorker#processBitmapWithSource(String, int, int)}的处理结果。
+     */
+    protected static final class ProcessedBitmap {
+    	final Bitmap bitmap;
+    	/** 位图的原始编码数据，没有时为null */
+    	final byte[] source;
+    	/** 位图是否经过缩放，未缩放时原始数据就是位图的编码 */
+    	final boolean scaled;
+
+    	protected ProcessedBitmap(Bitmap bitmap, byte[] source, boolean scaled) {
+    		this.bitmap = bitmap;
+    		this.source = source;
+    		this.scaled = scaled;
+    	}
+    }
+
+    /**
+     * VIEW是否仍然绑定到pending，是则解除绑定。
+     */
+    private static boolean unbindIfCurrent(ImageView imageView, PendingLoad pending) {
+    	synchronized (BINDINGS) {
+    		if (BINDINGS.get(imageView) != pending) {
+    			return false;
+    		}
+    		BINDINGS.remove(imageView);
+    		return true;
+    	}
+    }
+
+    /**
+     * 加载结果的主线程分发队列。工作线程把结果放入队列，主线程在下一帧开始时一次性显示所有结果，
+     * 不再为每张图片分配Handler和Message。是否仍然绑定只在主线程显示时检查，
+     * VIEW已经绑定到别的请求时结果被丢弃。
+     */
+    private static final class DeliveryQueue implements Runnable, Choreographer.FrameCallback {
+    	private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    	private ArrayList<Delivery> queue = new ArrayList<Delivery>();
+    	private ArrayList<Delivery> spare = new ArrayList<Delivery>();
+    	private boolean scheduled;
+
+    	/**
+    	 * 放入一个结果。不在工作线程检查绑定，绑定可能还没有写入；
+    	 * 位图已经由{@link BitmapPool#pin}标记，显示或丢弃后释放。VIEW正在显示的旧位图
+    	 * 在主线程换成新位图之前一直受保护。
+    	 */
+    	void post(ImageView imageView, PendingLoad pending, Bitmap bitmap) {
+    		synchronized (this) {
+    			queue.add(new Delivery(imageView, pending, bitmap));
+    			if (scheduled) {
+    				return;
+    			}
+    			scheduled = true;
+    		}
+    		mainHandler.post(this);
+    	}
+
+    	/**
+    	 * 在主线程上注册下一帧的回调。
+    	 */
+    	@Override
+    	public void run() {
+    		Choreographer.getInstance().postFrameCallback(this);
+    	}
+
+    	@Override
+    	public void doFrame(long frameTimeNanos) {
+    		final ArrayList<Delivery> batch;
+    		synchronized (this) {
+    			batch = queue;
+    			queue = spare;
+    			spare = batch;
+    			scheduled = false;
+    		}
+    		for (int i = 0, n = batch.size(); i < n; i++) {
+    			final Delivery delivery = batch.get(i);
+    			if (unbindIfCurrent(delivery.imageView, delivery.pending)) {
+    				BitmapPool.setDisplayed(delivery.imageView, delivery.bitmap);
+    				delivery.imageView.setImageBitmap(delivery.bitmap);
+    			}
+    			BitmapPool.unpin(delivery.bitmap);
+    		}
+    		batch.clear();
+    	}
+    }
+
+    private static final class Delivery {
+    	final ImageView imageView;
+    	final PendingLoad pending;
+    	final Bitmap bitmap;
+
+    	Delivery(ImageView imageView, PendingLoad pending, Bitmap bitmap) {
+    		this.imageView = imageView;
+    		this.pending = pending;
+    		this.bitmap = bitmap;
+    	}
+    }
     
     private class CacheAsyncTask implements Runnable{
 
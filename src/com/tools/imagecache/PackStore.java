@@ -0,0 +1,341 @@
+package com.tools.imagecache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * {@link DiskLruCache}中小value的日志结构存储。
+ *
+ * <p>小于阈值的value不再各自占用一个"key.N"文件，而是顺序追加到名为"pack.N"的段文件中，
+ * value的位置（段号和偏移）记录在日志里，内存中只保存每个段的总字节数和有效字节数。
+ * 删除和淘汰只是把value所占的字节记为无效。无效字节超过所有段文件的1/4时，后台线程从无效字节
+ * 比例最高的段开始把有效数据复制到新的当前段，然后删除旧段文件，直到无效字节不超过1/8。
+ * 有效字节计入DiskLruCache的size()，不超过maxSize，所以段文件最多占用约4/3倍maxSize的磁盘空间。
+ *
+ * <p>位置使用一个long表示：高32位为段号，低32位为段内偏移；{@link #NO_LOCATION}表示value
+ * 保存在单独的文件中。
+ *
+ * <p>该类不是线程安全的，所有方法都在持有所属DiskLruCache的锁时调用。
+ */
+final class PackStore {
+    static final String PACK_FILE_PREFIX = "pack.";
+    static final long NO_LOCATION = -1;
+
+    /** 段文件达到该大小后开始写新段 */
+    private static final long SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    /** 无效字节少于该值时不压缩，避免为很少的空间反复复制 */
+    private static final long MIN_COMPACTION_BYTES = 64 * 1024;
+
+    private final File directory;
+    private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+    private Segment activeSegment;
+    private FileOutputStream activeOut;
+    private long totalBytes;
+    private long liveBytes;
+
+    PackStore(File directory) {
+        this.directory = directory;
+    }
+
+    static long location(int segmentId, long offset) {
+        return ((long) segmentId << 32) | offset;
+    }
+
+    static int segmentId(long location) {
+        return (int) (location >>> 32);
+    }
+
+    static long offset(long location) {
+        return location & 0xffffffffL;
+    }
+
+    /**
+     * Loads the segments found in the directory. Segments that no entry
+     * refers to are deleted.
+     *
+     * @param live the number of live bytes per segment id, computed from the
+     *     journal.
+     */
+    void load(Map<Integer, Long> live) throws IOException {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            final String name = file.getName();
+            if (!name.startsWith(PACK_FILE_PREFIX)) {
+                continue;
+            }
+            final int id;
+            try {
+                id = Integer.parseInt(name.substring(PACK_FILE_PREFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            final Long liveBytesValue = live.get(id);
+            if (liveBytesValue == null) {
+                if (!file.delete()) {
+                    throw new IOException("failed to delete " + file);
+                }
+                continue;
+            }
+            final Segment segment = new Segment(id);
+            segment.length = file.length();
+            segment.liveBytes = liveBytesValue;
+            segments.put(id, segment);
+            totalBytes += segment.length;
+            liveBytes += segment.liveBytes;
+        }
+        if (!segments.isEmpty() && segments.lastEntry().getValue().length < SEGMENT_SIZE) {
+            activeSegment = segments.lastEntry().getValue();
+        }
+    }
+
+    /**
+     * Appends {@code count} bytes of {@code data} to the active segment.
+     *
+     * @return the location of the appended value.
+     */
+    long append(byte[] data, int offset, int count) throws IOException {
+        if (activeSegment == null || activeSegment.length >= SEGMENT_SIZE) {
+            rollSegment();
+        }
+        if (activeOut == null) {
+            activeOut = new FileOutputStream(getSegmentFile(activeSegment.id), true);
+        }
+        final long location = location(activeSegment.id, activeSegment.length);
+        activeOut.write(data, offset, count);
+        activeSegment.length += count;
+        activeSegment.liveBytes += count;
+        totalBytes += count;
+        liveBytes += count;
+        return location;
+    }
+
+    private void rollSegment() throws IOException {
+        closeActive();
+        final int id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        activeSegment = new Segment(id);
+        segments.put(id, activeSegment);
+    }
+
+    private void closeActive() throws IOException {
+        if (activeOut != null) {
+            activeOut.close();
+            activeOut = null;
+        }
+    }
+
+    /**
+     * Returns a stream over the {@code length} bytes stored at {@code location}.
+     */
+    InputStream open(long location, long length) throws IOException {
+        final FileInputStream in = new FileInputStream(getSegmentFile(segmentId(location)));
+        try {
+            in.getChannel().position(offset(location));
+        } catch (IOException e) {
+            DiskLruCache.closeQuietly(in);
+            throw e;
+        }
+        return new BoundedInputStream(in, length);
+    }
+
+    /**
+     * Returns the channel of the segment file that {@code in} reads from, or
+     * null if {@code in} was not returned by {@link #open}.
+     */
+    static FileChannel getChannel(InputStream in) {
+        if (in instanceof BoundedInputStream) {
+            return ((FileInputStream) ((BoundedInputStream) in).source()).getChannel();
+        }
+        return null;
+    }
+
+    /**
+     * Reads the {@code length} bytes stored at {@code location}.
+     */
+    byte[] read(long location, int length) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(getSegmentFile(segmentId(location)), "r");
+        try {
+            final byte[] data = new byte[length];
+            file.seek(offset(location));
+            file.readFully(data);
+            return data;
+        } finally {
+            DiskLruCache.closeQuietly(file);
+        }
+    }
+
+    /**
+     * Marks the {@code length} bytes at {@code location} as dead. A segment
+     * that no longer holds live bytes is deleted.
+     */
+    void release(long location, long length) throws IOException {
+        final Segment segment = segments.get(segmentId(location));
+        if (segment == null) {
+            return;
+        }
+        segment.liveBytes -= length;
+        liveBytes -= length;
+        if (segment.liveBytes <= 0 && segment != activeSegment) {
+            deleteSegment(segment.id);
+        }
+    }
+
+    /**
+     * Returns true once more than a quarter of all pack bytes are dead.
+     */
+    boolean compactionRequired() {
+        final long deadBytes = totalBytes - liveBytes;
+        return deadBytes >= MIN_COMPACTION_BYTES && deadBytes * 4 > totalBytes;
+    }
+
+    /**
+     * Returns the ids of the segments whose live data should be copied out:
+     * the segments with the largest share of dead bytes, until at most an
+     * eighth of the remaining pack bytes are dead. If the active segment is
+     * among them it is sealed, so that the copies go to a new segment.
+     */
+    List<Integer> segmentsToCompact() throws IOException {
+        final List<Segment> candidates = new ArrayList<Segment>(segments.values());
+        Collections.sort(candidates, new Comparator<Segment>() {
+            @Override public int compare(Segment a, Segment b) {
+                // ascending live ratio, compared without division
+                final double left = (double) a.liveBytes * b.length;
+                final double right = (double) b.liveBytes * a.length;
+                return left < right ? -1 : (left > right ? 1 : 0);
+            }
+        });
+        final List<Integer> ids = new ArrayList<Integer>();
+        long deadBytes = totalBytes - liveBytes;
+        long remainingBytes = totalBytes;
+        for (Segment segment : candidates) {
+            if (deadBytes * 8 <= remainingBytes) {
+                break;
+            }
+            ids.add(segment.id);
+            // the live bytes are copied to a new segment, the dead ones go away
+            deadBytes -= segment.length - segment.liveBytes;
+            remainingBytes -= segment.length - segment.liveBytes;
+            if (segment == activeSegment) {
+                closeActive();
+                activeSegment = null;
+            }
+        }
+        return ids;
+    }
+
+    void deleteSegment(int id) throws IOException {
+        final Segment segment = segments.remove(id);
+        if (segment == null) {
+            return;
+        }
+        if (segment == activeSegment) {
+            closeActive();
+            activeSegment = null;
+        }
+        totalBytes -= segment.length;
+        liveBytes -= segment.liveBytes;
+        final File file = getSegmentFile(id);
+        if (file.exists() && !file.delete()) {
+            throw new IOException("failed to delete " + file);
+        }
+    }
+
+    /**
+     * Returns the number of bytes in all segment files.
+     */
+    long totalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Returns the number of bytes still referenced by an entry.
+     */
+    long liveBytes() {
+        return liveBytes;
+    }
+
+    void close() throws IOException {
+        closeActive();
+    }
+
+    private File getSegmentFile(int id) {
+        return new File(directory, PACK_FILE_PREFIX + id);
+    }
+
+    private static final class Segment {
+        private final int id;
+        private long length;
+        private long liveBytes;
+
+        private Segment(int id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * Limits reads to the bytes of a single value.
+     */
+    private static final class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+
+        private BoundedInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        private InputStream source() {
+            return in;
+        }
+
+        @Override public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            final int b = in.read();
+            if (b != -1) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            final int read = in.read(buffer, offset, (int) Math.min(count, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override public long skip(long count) throws IOException {
+            final long skipped = in.skip(Math.min(count, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package com.tools.imagecache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按key的散列值把数据分布到多个独立{@link DiskLruCache}分段上的磁盘缓存。
+ * 每个分段拥有自己的LinkedHashMap和日志文件，因此不同分段上的get/edit/remove互不竞争同一个监视器。
+ *
+ * <p>maxSize是所有分段共享的预算，单个entry最大可以接近maxSize，不受分段数影响。
+ * 总大小超出maxSize时，后台线程每次比较各分段最久未访问的entry的访问时间，从最旧的那个分段淘汰一个
+ * entry，直到总大小回到maxSize以内。使用LRU时淘汰顺序在分段之间也是LRU；使用其他淘汰策略时
+ * 按同样的方式选择分段，分段内部由淘汰策略选择受害者。
+ * 与{@link DiskLruCache}一样，淘汰是异步的，总大小可能短暂超过maxSize，{@link #flush()}和
+ * {@link #close()}会先同步淘汰。重新打开缓存后，不同分段之间的访问先后只能按分段顺序近似。
+ *
+ * <p>只有一个分段时直接使用缓存目录本身，与{@link DiskLruCache}的目录结构完全一致；
+ * 多个分段时每个分段使用一个名为"segment-N"的子目录。分段数变化时旧布局的数据会被删除，
+ * 所以缓存目录必须由本缓存独占。
+ *
+ * <p>返回的{@link DiskLruCache.Snapshot}和{@link DiskLruCache.Editor}属于key所在的分段，
+ * 使用方式与{@link DiskLruCache}相同。
+ */
+public final class ShardedDiskLruCache implements Closeable {
+    /** 默认分段数 */
+    public static final int DEFAULT_SEGMENT_COUNT = 4;
+
+    static final String SEGMENT_DIR_PREFIX = "segment-";
+
+    private final File directory;
+    private final long maxSize;
+    private final DiskLruCache[] segments;
+
+    /* 多个分段共享的预算，只有一个分段时不使用 */
+    private final AtomicLong totalSize = new AtomicLong();
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicBoolean trimScheduled = new AtomicBoolean();
+    /** 所有分段都已打开后才开始淘汰 */
+    private volatile boolean opened;
+    private final Object trimLock = new Object();
+
+    /** 跨分段的淘汰使用一个后台线程 */
+    private final ExecutorService executorService = new ThreadPoolExecutor(0, 1,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    private final Callable<Void> trimCallable = new Callable<Void>() {
+        @Override public Void call() throws Exception {
+            trimScheduled.set(false);
+            trimToSize();
+            return null;
+        }
+    };
+
+    private final DiskLruCache.SharedBudget budget = new DiskLruCache.SharedBudget() {
+        @Override public void onSizeChanged(long delta) {
+            if (totalSize.addAndGet(delta) > maxSize && opened
+                    && trimScheduled.compareAndSet(false, true)) {
+                executorService.submit(trimCallable);
+            }
+        }
+
+        @Override public long nextAccessTime() {
+            return clock.incrementAndGet();
+        }
+    };
+
+    private ShardedDiskLruCache(File directory, long maxSize, DiskLruCache[] segments) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.segments = segments;
+    }
+
+    /**
+     * 使用默认分段数打开{@code directory}中的缓存，不存在时创建。
+     *
+     * @param directory a writable directory
+     * @param appVersion
+     * @param valueCount the number of values per cache entry. Must be positive.
+     * @param maxSize the maximum number of bytes this cache should use to store
+     * @throws IOException if reading or writing the cache directory fails
+     */
+    public static ShardedDiskLruCache open(File directory, int appVersion, int valueCount,
+            long maxSize) throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, DEFAULT_SEGMENT_COUNT);
+    }
+
+    /**
+     * 使用指定的分段数打开{@code directory}中的缓存，不存在时创建。
+     *
+     * @param directory a writable directory
+     * @param appVersion
+     * @param valueCount the number of values per cache entry. Must be positive.
+     * @param maxSize the maximum number of bytes this cache should use to store
+     * @param segmentCount 分段数，必须为正数
+     * @throws IOException if reading or writing the cache directory fails
+     */
+    public static ShardedDiskLruCache open(File directory, int appVersion, int valueCount,
+            long maxSize, int segmentCount) throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, segmentCount,
+                new DiskLruCache.Options());
+    }
+
+    /**
+     * 使用指定的分段数和存储选项打开{@code directory}中的缓存，不存在时创建。
+     * 所有分段使用同一个{@code options}。
+     *
+     * @param directory a writable directory
+     * @param appVersion
+     * @param valueCount the number of values per cache entry. Must be positive.
+     * @param maxSize the maximum number of bytes this cache should use to store
+     * @param segmentCount 分段数，必须为正数
+     * @param options 存储选项
+     * @throws IOException if reading or writing the cache directory fails
+     */
+    public static ShardedDiskLruCache open(File directory, int appVersion, int valueCount,
+            long maxSize, int segmentCount, DiskLruCache.Options options) throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (segmentCount <= 0) {
+            throw new IllegalArgumentException("segmentCount <= 0");
+        }
+
+        directory.mkdirs();
+        deleteStaleLayout(directory, segmentCount);
+
+        final DiskLruCache[] segments = new DiskLruCache[segmentCount];
+        final ShardedDiskLruCache cache = new ShardedDiskLruCache(directory, maxSize, segments);
+        // 每个分段的maxSize都是总预算，分段只在自己超出总预算时才自行淘汰
+        final DiskLruCache.SharedBudget budget = segmentCount == 1 ? null : cache.budget;
+        try {
+            for (int i = 0; i < segmentCount; i++) {
+                segments[i] = DiskLruCache.open(getSegmentDirectory(directory, segmentCount, i),
+                        appVersion, valueCount, maxSize, options, budget);
+            }
+        } catch (IOException e) {
+            for (DiskLruCache segment : segments) {
+                DiskLruCache.closeQuietly(segment);
+            }
+            throw e;
+        }
+        cache.opened = true;
+        // 打开时已有的数据可能超出预算，例如maxSize变小了
+        cache.budget.onSizeChanged(0);
+        return cache;
+    }
+
+    private static File getSegmentDirectory(File directory, int segmentCount, int index) {
+        if (segmentCount == 1) {
+            return directory;
+        }
+        return new File(directory, SEGMENT_DIR_PREFIX + index);
+    }
+
+    /**
+     * 删除与当前分段数不一致的旧布局留下的文件。
+     */
+    private static void deleteStaleLayout(File directory, int segmentCount) throws IOException {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            final boolean segmentDir = file.isDirectory()
+                    && file.getName().startsWith(SEGMENT_DIR_PREFIX);
+            if (segmentCount == 1) {
+                // 单分段使用根目录，只清理多分段布局留下的子目录
+                if (segmentDir) {
+                    deleteRecursively(file);
+                }
+            } else if (!segmentDir || !isSegmentName(file.getName(), segmentCount)) {
+                deleteRecursively(file);
+            }
+        }
+    }
+
+    private static boolean isSegmentName(String name, int segmentCount) {
+        try {
+            final int index = Integer.parseInt(name.substring(SEGMENT_DIR_PREFIX.length()));
+            return index >= 0 && index < segmentCount
+                    && name.equals(SEGMENT_DIR_PREFIX + index);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static void deleteRecursively(File file) throws IOException {
+        if (file.isDirectory()) {
+            DiskLruCache.deleteContents(file);
+        }
+        if (!file.delete()) {
+            throw new IOException("failed to delete file: " + file);
+        }
+    }
+
+    private DiskLruCache segmentFor(String key) {
+        if (segments.length == 1) {
+            return segments[0];
+        }
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return segments[(h & Integer.MAX_VALUE) % segments.length];
+    }
+
+    /**
+     * Returns a snapshot of the entry named {@code key}, or null if it doesn't
+     * exist is not currently readable.
+     */
+    public DiskLruCache.Snapshot get(String key) throws IOException {
+        return segmentFor(key).get(key);
+    }
+
+    /**
+     * Returns an editor for the entry named {@code key}, or null if another
+     * edit is in progress.
+     */
+    public DiskLruCache.Editor edit(String key) throws IOException {
+        return segmentFor(key).edit(key);
+    }
+
+    /**
+     * Drops the entry for {@code key} if it exists and can be removed.
+     *
+     * @return true if an entry was removed.
+     */
+    public boolean remove(String key) throws IOException {
+        return segmentFor(key).remove(key);
+    }
+
+    /**
+     * Returns the directory where this cache stores its data.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the maximum number of bytes that this cache should use to store
+     * its data.
+     */
+    public long maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * 返回所有分段当前使用的字节数之和。
+     */
+    public long size() {
+        long size = 0;
+        for (DiskLruCache segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * 返回分段数。
+     */
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    /**
+     * Returns true if this cache has been closed.
+     */
+    public boolean isClosed() {
+        return segments[0].isClosed();
+    }
+
+    /**
+     * 总大小超出maxSize时，从最久未访问的entry所在的分段逐个淘汰。
+     */
+    private void trimToSize() throws IOException {
+        if (segments.length == 1) {
+            return;
+        }
+        synchronized (trimLock) {
+            while (totalSize.get() > maxSize) {
+                DiskLruCache oldest = null;
+                long oldestTime = Long.MAX_VALUE;
+                for (DiskLruCache segment : segments) {
+                    final long time = segment.eldestAccessTime();
+                    if (time < oldestTime) {
+                        oldest = segment;
+                        oldestTime = time;
+                    }
+                }
+                // 所有entry都在编辑中或缓存已关闭，编辑完成后会再次淘汰
+                if (oldest == null || !oldest.evictOne()) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Force buffered operations to the filesystem.
+     */
+    public void flush() throws IOException {
+        trimToSize();
+        for (DiskLruCache segment : segments) {
+            segment.flush();
+        }
+    }
+
+    /**
+     * Closes this cache. Stored values will remain on the filesystem.
+     */
+    @Override public void close() throws IOException {
+        IOException failure = null;
+        if (!isClosed()) {
+            try {
+                trimToSize();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        for (DiskLruCache segment : segments) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Closes the cache and deletes all of its stored values. This will delete
+     * all files in the cache directory including files that weren't created by
+     * the cache.
+     */
+    public void delete() throws IOException {
+        close();
+        DiskLruCache.deleteContents(directory);
+    }
+}
@@ -0,0 +1,110 @@
+package com.tools.imagecache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 分段LRU（SLRU）淘汰策略。
+ *
+ * <p>新写入的entry进入试用段（probation），再次被读取时晋升到保护段（protected）。
+ * 保护段最多占用容量的80%，超出时把最久未用的entry降回试用段。淘汰总是先从试用段开始，
+ * 所以只被访问过一次的entry不会挤掉经常被读取的entry。
+ */
+final class SlruEvictionPolicy implements EvictionPolicy {
+    private static final float PROTECTED_PERCENT = 0.8f;
+
+    /* 两个段都按插入顺序排列，移动entry时先删除再插入 */
+    private final LinkedHashMap<String, Long> probation = new LinkedHashMap<String, Long>();
+    private final LinkedHashMap<String, Long> protectedSegment = new LinkedHashMap<String, Long>();
+    private final long protectedMaxSize;
+    private long probationSize;
+    private long protectedSize;
+
+    SlruEvictionPolicy(long maxSize) {
+        this.protectedMaxSize = (long) (maxSize * PROTECTED_PERCENT);
+    }
+
+    /**
+     * Returns the total size of the entries in both segments.
+     */
+    long size() {
+        return probationSize + protectedSize;
+    }
+
+    boolean contains(String key) {
+        return probation.containsKey(key) || protectedSegment.containsKey(key);
+    }
+
+    @Override public void onRead(String key) {
+        Long size = probation.remove(key);
+        if (size != null) {
+            probationSize -= size;
+            protectedSegment.put(key, size);
+            protectedSize += size;
+            demoteProtected();
+            return;
+        }
+        size = protectedSegment.remove(key);
+        if (size != null) {
+            protectedSegment.put(key, size);
+        }
+    }
+
+    @Override public void onMiss(String key) {
+    }
+
+    @Override public void onWrite(String key, long size) {
+        final Long oldSize = protectedSegment.get(key);
+        if (oldSize != null) {
+            protectedSegment.remove(key);
+            protectedSegment.put(key, size);
+            protectedSize += size - oldSize;
+            demoteProtected();
+        } else {
+            final Long oldProbationSize = probation.remove(key);
+            if (oldProbationSize != null) {
+                probationSize -= oldProbationSize;
+            }
+            probation.put(key, size);
+            probationSize += size;
+        }
+    }
+
+    @Override public void onRemove(String key) {
+        Long size = probation.remove(key);
+        if (size != null) {
+            probationSize -= size;
+            return;
+        }
+        size = protectedSegment.remove(key);
+        if (size != null) {
+            protectedSize -= size;
+        }
+    }
+
+    @Override public void onEvict(String key) {
+    }
+
+    @Override public Iterator<String> evictionOrder() {
+        return EvictionOrder.concat(probation.keySet().iterator(),
+                protectedSegment.keySet().iterator());
+    }
+
+    /**
+     * Returns the key at the head of the probation segment, or null.
+     */
+    String probationVictim() {
+        return probation.isEmpty() ? null : probation.keySet().iterator().next();
+    }
+
+    private void demoteProtected() {
+        while (protectedSize > protectedMaxSize && protectedSegment.size() > 1) {
+            final Map.Entry<String, Long> eldest = protectedSegment.entrySet().iterator().next();
+            protectedSegment.remove(eldest.getKey());
+            protectedSize -= eldest.getValue();
+            probation.put(eldest.getKey(), eldest.getValue());
+            probationSize += eldest.getValue();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.tools.imagecache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * W-TinyLFU淘汰策略。
+ *
+ * <p>新写入的entry先进入占容量1%的LRU窗口，其余容量是一个{@link SlruEvictionPolicy}主区。
+ * 需要淘汰且窗口超出预算时，用{@link FrequencySketch}比较窗口中最旧的entry（候选者）和
+ * 主区试用段头部的entry（受害者）的访问频率：候选者更频繁时先淘汰受害者，腾出的空间
+ * 在{@link #onEvict(String)}中让候选者进入主区，否则直接淘汰候选者。这样大量只出现一次的图片只会在窗口中短暂停留，不会挤掉常用的头像和图标。
+ */
+final class TinyLfuEvictionPolicy implements EvictionPolicy {
+    private static final float WINDOW_PERCENT = 0.01f;
+
+    /** 用于估计entry数量的平均entry大小 */
+    private static final int AVERAGE_ENTRY_SIZE = 16 * 1024;
+
+    private final LinkedHashMap<String, Long> window = new LinkedHashMap<String, Long>(0, 0.75f, true);
+    private final SlruEvictionPolicy main;
+    private final FrequencySketch sketch;
+    private final long windowMaxSize;
+    private final long mainMaxSize;
+    private long windowSize;
+
+    TinyLfuEvictionPolicy(long maxSize) {
+        this.windowMaxSize = Math.max(1, (long) (maxSize * WINDOW_PERCENT));
+        this.mainMaxSize = maxSize - windowMaxSize;
+        this.main = new SlruEvictionPolicy(mainMaxSize);
+        this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE,
+                maxSize / AVERAGE_ENTRY_SIZE));
+    }
+
+    @Override public void onRead(String key) {
+        sketch.increment(key);
+        if (window.get(key) == null) {
+            main.onRead(key);
+        }
+    }
+
+    @Override public void onMiss(String key) {
+        sketch.increment(key);
+    }
+
+    @Override public void onWrite(String key, long size) {
+        final Long oldSize = window.get(key);
+        if (oldSize != null) {
+            window.put(key, size);
+            windowSize += size - oldSize;
+        } else if (main.contains(key)) {
+            main.onWrite(key, size);
+        } else {
+            window.put(key, size);
+            windowSize += size;
+        }
+        // 刚写入的entry至少在窗口中停留到下一次写入
+        admitWhileRoom(1);
+    }
+
+    @Override public void onRemove(String key) {
+        final Long size = window.remove(key);
+        if (size != null) {
+            windowSize -= size;
+        } else {
+            main.onRemove(key);
+        }
+    }
+
+    @Override public void onEvict(String key) {
+        // 淘汰了主区的受害者时，候选者可以进入腾出的空间
+        admitWhileRoom(0);
+    }
+
+    @Override public Iterator<String> evictionOrder() {
+        if (window.isEmpty()) {
+            return main.evictionOrder();
+        }
+        final Iterator<String> windowOrder = window.keySet().iterator();
+        if (windowSize <= windowMaxSize) {
+            return EvictionOrder.concat(main.evictionOrder(), windowOrder);
+        }
+        final String candidate = window.keySet().iterator().next();
+        String victim = main.probationVictim();
+        if (victim == null) {
+            final Iterator<String> mainOrder = main.evictionOrder();
+            victim = mainOrder.hasNext() ? mainOrder.next() : null;
+        }
+        if (victim != null && sketch.frequency(candidate) > sketch.frequency(victim)) {
+            // 候选者比受害者更常用：先淘汰主区
+            return EvictionOrder.concat(main.evictionOrder(), windowOrder);
+        }
+        return EvictionOrder.concat(windowOrder, main.evictionOrder());
+    }
+
+    /**
+     * 主区还有空间时，窗口溢出的entry无需竞争直接进入主区。
+     *
+     * @param minWindowCount 窗口中至少保留的entry数
+     */
+    private void admitWhileRoom(int minWindowCount) {
+        while (windowSize > windowMaxSize && window.size() > minWindowCount) {
+            final Map.Entry<String, Long> eldest = window.entrySet().iterator().next();
+            if (main.size() + eldest.getValue() > mainMaxSize) {
+                break;
+            }
+            moveToMain(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    private void moveToMain(String key, long size) {
+        window.remove(key);
+        windowSize -= size;
+        main.onWrite(key, size);
+    }
+}
@@ -1,43 +1,124 @@
 package com.tools.thread;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-
 
 /**
  * 线程池
+ * 图片加载分为三个阶段，每个阶段使用独立的{@link PriorityExecutor}：磁盘阶段查找内存和磁盘缓存，
+ * 网络阶段下载原始数据，解码阶段解码并写入缓存。慢速的网络请求不会占满磁盘阶段的线程，
+ * 磁盘缓存命中可以在几毫秒内完成。
+ * 任务按优先级执行：{@link #PRIORITY_IMMEDIATE}最先，其次是屏幕上可见的图片、即将可见的预取，
+ * 最后是后台任务；同一优先级内后提交的先执行。队列满时丢弃优先级最低的任务，见{@link PriorityExecutor}。
  * @author Ivan
  * @version 1.0.0
  */
 public class ImageCacheThreadPool {
-	private static final ExecutorService pool;
+	/** 缓存初始化、清理等维护任务 */
+	public static final int PRIORITY_IMMEDIATE = 0;
+	
+	/** 屏幕上可见的图片 */
+	public static final int PRIORITY_VISIBLE = 1;
 	
-	/** 应用图片加载核心线程数 */
-	public static final int THREAD_COREPOOLSIZE_FORIMAGECACHE = 5;
+	/** 即将滑入屏幕的图片 */
+	public static final int PRIORITY_PREFETCH = 2;
 	
-	/** 应用图片加载最大核心线程数 */
+	/** 后台任务 */
+	public static final int PRIORITY_BACKGROUND = 3;
+	
+	/** 应用图片加载最大核心线程数，用作网络阶段的线程数 */
 	public static final int THREAD_MAXIMUMPOOLSIZE_FORIMAGECACHE = 15;
 	
 	/** 应用图片加载线程池中空闲线程的销毁周期 */
 	public static final long THREAD_KEEPALIVETIME_FORIMAGECACHE = 10000L;
 	
-	/** 应用图片加载线程池队列大小 */
+	/** 应用图片加载线程池每个阶段的队列大小，{@link #PRIORITY_IMMEDIATE}任务不受限制 */
 	public static final int THREAD_QUEUE_FORIMAGECACHE = 30;
 	
-	static {
-		pool = new ThreadPoolExecutor(THREAD_COREPOOLSIZE_FORIMAGECACHE
-				, THREAD_MAXIMUMPOOLSIZE_FORIMAGECACHE
-				, THREAD_KEEPALIVETIME_FORIMAGECACHE
-				, TimeUnit.MILLISECONDS
-				,  new LinkedBlockingQueue<Runnable>(THREAD_QUEUE_FORIMAGECACHE));
-	}
+	/** 磁盘阶段的线程数 */
+	public static final int THREAD_DISKPOOLSIZE_FORIMAGECACHE = 2;
+	
+	private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+	
+	private static final PriorityExecutor diskExecutor = new PriorityExecutor("image-disk"
+			, Math.max(THREAD_DISKPOOLSIZE_FORIMAGECACHE, CPU_COUNT)
+			, THREAD_QUEUE_FORIMAGECACHE
+			, THREAD_KEEPALIVETIME_FORIMAGECACHE);
+	
+	private static final PriorityExecutor networkExecutor = new PriorityExecutor("image-network"
+			, THREAD_MAXIMUMPOOLSIZE_FORIMAGECACHE
+			, THREAD_QUEUE_FORIMAGECACHE
+			, THREAD_KEEPALIVETIME_FORIMAGECACHE);
+	
+	private static final PriorityExecutor decodeExecutor = new PriorityExecutor("image-decode"
+			, CPU_COUNT
+			, THREAD_QUEUE_FORIMAGECACHE
+			, THREAD_KEEPALIVETIME_FORIMAGECACHE);
 	
 	/**
+	 * 提交任务到磁盘阶段。
 	 * @param command
 	 */
-	public static synchronized void execute(Runnable command) {
-			pool.execute(command);
+	public static void execute(Runnable command) {
+		diskExecutor.execute(command);
+	}
+	
+	/**
+	 * 修改任务的优先级，任务在哪个阶段排队都可以。
+	 * @param task
+	 * @param priority
+	 */
+	public static void updatePriority(PriorityRunnable task, int priority) {
+		while (true) {
+			final PriorityExecutor executor = task.executor;
+			if (executor == null) {
+				task.priority = priority;
+				return;
+			}
+			synchronized (executor) {
+				// 任务已经转到下一个阶段时重试
+				if (task.executor == executor) {
+					executor.updatePriority(task, priority);
+					return;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * 暂停或恢复网络和解码阶段。暂停期间请求留在队列中，不占用线程；
+	 * 磁盘阶段不暂停，内存和磁盘缓存命中仍然可以显示。
+	 * @param pause
+	 */
+	public static void setPaused(boolean pause) {
+		networkExecutor.setPaused(pause);
+		decodeExecutor.setPaused(pause);
+	}
+	
+	/**
+	 * 缓存查找和磁盘读写阶段。
+	 */
+	public static PriorityExecutor getDiskExecutor() {
+		return diskExecutor;
+	}
+	
+	/**
+	 * 网络下载阶段。
+	 */
+	public static PriorityExecutor getNetworkExecutor() {
+		return networkExecutor;
+	}
+	
+	/**
+	 * 解码阶段，线程数等于CPU核数。
+	 */
+	public static PriorityExecutor getDecodeExecutor() {
+		return decodeExecutor;
+	}
+	
+	/**
+	 * 返回所有阶段因队列已满被丢弃的任务数。
+	 */
+	public static long getRejectedCount() {
+		return diskExecutor.getRejectedCount() + networkExecutor.getRejectedCount()
+				+ decodeExecutor.getRejectedCount();
 	}
 }
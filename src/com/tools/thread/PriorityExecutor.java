@@ -0,0 +1,292 @@
+package com.tools.thread;
+
+import java.util.Collection;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * 按优先级调度{@link PriorityRunnable}的线程池。
+ * 优先级数值越小越先执行，同一优先级内后提交的先执行；排队中的任务可以通过{@link #updatePriority}调整优先级。
+ * 可丢弃的排队任务达到队列大小后，丢弃优先级最低的任务中最早提交的一个，被丢弃的任务会收到
+ * {@link PriorityRunnable#onDropped()}回调，{@link #execute}不会抛出RejectedExecutionException。
+ * {@link ImageCacheThreadPool#PRIORITY_IMMEDIATE}任务不会被丢弃，也不计入队列大小。
+ * 暂停期间新提交的和排队中的任务留在暂停队列中，不占用线程，恢复后按优先级继续执行；
+ * 暂停期间{@link ImageCacheThreadPool#PRIORITY_VISIBLE}任务同样不会被丢弃、不计入队列大小，
+ * 队列大小只限制预取和后台任务，所以恢复时排队的任务数可能超过队列大小。
+ * @version 1.0.0
+ */
+public class PriorityExecutor {
+	private final String name;
+	private final int queueCapacity;
+	private final ThreadPoolExecutor pool;
+	
+	/** 暂停期间的任务 */
+	private final PriorityQueue<PriorityRunnable> parked = new PriorityQueue<PriorityRunnable>();
+	private boolean paused;
+	
+	private long sequence;
+	private long submittedCount;
+	private long rejectedCount;
+	private int maxQueueSize;
+	private long queueWaitTimeNanos;
+	private long startedCount;
+	
+	/**
+	 * @param name 线程名前缀，也用于日志
+	 * @param threadCount 线程数，空闲超时后销毁
+	 * @param queueCapacity 队列大小
+	 * @param keepAliveMillis 空闲线程的销毁周期
+	 */
+	public PriorityExecutor(final String name, int threadCount, int queueCapacity,
+			long keepAliveMillis) {
+		this.name = name;
+		this.queueCapacity = queueCapacity;
+		// 优先级队列是无界的，线程池不会创建超过核心线程数的线程，所以核心线程数即最大线程数
+		pool = new ThreadPoolExecutor(threadCount
+				, threadCount
+				, keepAliveMillis
+				, TimeUnit.MILLISECONDS
+				, new PriorityBlockingQueue<Runnable>()
+				, new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+					
+					@Override
+					public Thread newThread(Runnable r) {
+						return new Thread(r, name + "-" + count.incrementAndGet());
+					}
+				}) {
+			@Override
+			protected void beforeExecute(Thread t, Runnable r) {
+				onStart((PriorityRunnable) r);
+			}
+		};
+		pool.allowCoreThreadTimeOut(true);
+	}
+	
+	/**
+	 * 提交任务。{@link PriorityRunnable}按其自身的优先级调度，其他任务按
+	 * {@link ImageCacheThreadPool#PRIORITY_IMMEDIATE}调度。
+	 * @param command
+	 */
+	public void execute(Runnable command) {
+		final PriorityRunnable task;
+		if (command instanceof PriorityRunnable) {
+			task = (PriorityRunnable) command;
+		} else {
+			task = new Wrapper(command);
+		}
+		synchronized (this) {
+			task.sequence = ++sequence;
+			task.executor = this;
+			task.enqueueTime = System.nanoTime();
+			submittedCount++;
+			
+			final Collection<? extends Runnable> queue = paused ? parked : pool.getQueue();
+			if (isSheddable(task) && countSheddable(queue) >= queueCapacity) {
+				final PriorityRunnable victim = findVictim(queue);
+				if (victim == null || victim.priority < task.priority) {
+					// 新任务的优先级最低，直接丢弃
+					drop(task);
+					return;
+				}
+				if (queue.remove(victim)) {
+					drop(victim);
+				}
+			}
+			if (paused) {
+				parked.add(task);
+				maxQueueSize = Math.max(maxQueueSize, parked.size());
+				return;
+			}
+			try {
+				pool.execute(task);
+			} catch (RejectedExecutionException e) {
+				drop(task);
+				return;
+			}
+			maxQueueSize = Math.max(maxQueueSize, queue.size());
+		}
+	}
+	
+	/**
+	 * 修改任务的优先级。任务仍在本线程池排队时按新的优先级重新排队，并视为最新提交的任务；
+	 * 已经开始执行的任务只记录新的优先级。
+	 * @param task
+	 * @param priority
+	 */
+	public synchronized void updatePriority(PriorityRunnable task, int priority) {
+		if (task.priority == priority) {
+			return;
+		}
+		if (task.executor == this && parked.remove(task)) {
+			task.priority = priority;
+			task.sequence = ++sequence;
+			parked.add(task);
+		} else if (task.executor == this && pool.getQueue().remove(task)) {
+			task.priority = priority;
+			task.sequence = ++sequence;
+			pool.execute(task);
+		} else {
+			task.priority = priority;
+		}
+	}
+	
+	/**
+	 * 任务能否因队列已满被丢弃。维护任务总是保留；暂停期间可见图片的任务也保留，
+	 * 否则快速滑动时停下来的那一屏图片会被预取任务挤掉。
+	 */
+	private boolean isSheddable(PriorityRunnable task) {
+		if (task.priority == ImageCacheThreadPool.PRIORITY_IMMEDIATE) {
+			return false;
+		}
+		return !paused || task.priority > ImageCacheThreadPool.PRIORITY_VISIBLE;
+	}
+	
+	private int countSheddable(Collection<? extends Runnable> queue) {
+		int count = 0;
+		for (Runnable runnable : queue) {
+			if (isSheddable((PriorityRunnable) runnable)) {
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * 返回可丢弃的任务中优先级最低的任务里最早提交的一个。
+	 */
+	private PriorityRunnable findVictim(Collection<? extends Runnable> queue) {
+		PriorityRunnable victim = null;
+		for (Runnable runnable : queue) {
+			final PriorityRunnable candidate = (PriorityRunnable) runnable;
+			if (!isSheddable(candidate)) {
+				continue;
+			}
+			if (victim == null || candidate.priority > victim.priority
+					|| (candidate.priority == victim.priority && candidate.sequence < victim.sequence)) {
+				victim = candidate;
+			}
+		}
+		return victim;
+	}
+	
+	/**
+	 * 暂停或恢复执行。暂停时排队中的任务移到暂停队列，正在执行的任务不受影响；
+	 * 恢复时暂停队列中的任务重新按优先级排队。
+	 * @param pause
+	 */
+	public synchronized void setPaused(boolean pause) {
+		if (paused == pause) {
+			return;
+		}
+		paused = pause;
+		if (pause) {
+			final BlockingQueue<Runnable> queue = pool.getQueue();
+			Runnable runnable;
+			while ((runnable = queue.poll()) != null) {
+				parked.add((PriorityRunnable) runnable);
+			}
+		} else {
+			PriorityRunnable task;
+			while ((task = parked.poll()) != null) {
+				try {
+					pool.execute(task);
+				} catch (RejectedExecutionException e) {
+					drop(task);
+				}
+			}
+		}
+	}
+	
+	public synchronized boolean isPaused() {
+		return paused;
+	}
+	
+	private void drop(PriorityRunnable task) {
+		rejectedCount++;
+		try {
+			task.onDropped();
+		} catch (RuntimeException e) {
+			// 回调失败不影响调用方
+		}
+	}
+	
+	private synchronized void onStart(PriorityRunnable task) {
+		startedCount++;
+		queueWaitTimeNanos += System.nanoTime() - task.enqueueTime;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * 返回当前排队的任务数，包括暂停队列中的任务。
+	 */
+	public synchronized int getQueueSize() {
+		return pool.getQueue().size() + parked.size();
+	}
+	
+	/**
+	 * 返回排队任务数的最大值。
+	 */
+	public synchronized int getMaxQueueSize() {
+		return maxQueueSize;
+	}
+	
+	/**
+	 * 返回正在执行任务的线程数。
+	 */
+	public int getActiveCount() {
+		return pool.getActiveCount();
+	}
+	
+	/**
+	 * 返回提交的任务数，包括被丢弃的任务。
+	 */
+	public synchronized long getSubmittedCount() {
+		return submittedCount;
+	}
+	
+	/**
+	 * 返回已经开始执行的任务数。
+	 */
+	public synchronized long getStartedCount() {
+		return startedCount;
+	}
+	
+	/**
+	 * 返回因队列已满被丢弃的任务数。
+	 */
+	public synchronized long getRejectedCount() {
+		return rejectedCount;
+	}
+	
+	/**
+	 * 返回已经开始执行的任务在队列中等待的平均时间，单位毫秒。
+	 */
+	public synchronized long getAverageQueueWaitTimeMillis() {
+		return startedCount == 0 ? 0 : queueWaitTimeNanos / startedCount / 1000000L;
+	}
+	
+	private static final class Wrapper extends PriorityRunnable {
+		private final Runnable command;
+		
+		Wrapper(Runnable command) {
+			super(ImageCacheThreadPool.PRIORITY_IMMEDIATE);
+			this.command = command;
+		}
+		
+		@Override
+		public void run() {
+			command.run();
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package com.tools.thread;
+
+/**
+ * 带优先级的任务，由{@link PriorityExecutor}按优先级调度。
+ * 优先级数值越小越先执行，同一优先级内后提交的任务先执行（LIFO），
+ * 这样快速滑动时最后出现在屏幕上的图片最先加载。
+ * @version 1.0.0
+ */
+public abstract class PriorityRunnable implements Runnable, Comparable<PriorityRunnable> {
+	/** 当前优先级，只在任务不在队列中时修改 */
+	int priority;
+	
+	/** 提交序号，越大表示提交得越晚 */
+	long sequence;
+	
+	/** 最近一次提交到的线程池 */
+	volatile PriorityExecutor executor;
+	
+	/** 最近一次提交的时间，用于统计排队时间 */
+	long enqueueTime;
+	
+	protected PriorityRunnable(int priority) {
+		this.priority = priority;
+	}
+	
+	public int getPriority() {
+		return priority;
+	}
+	
+	/**
+	 * 线程池队列已满、任务被丢弃且不会执行时调用，用于清理任务相关的状态。
+	 * 在提交任务的线程上调用，调用时可能持有线程池的锁，不能再向线程池提交任务。
+	 */
+	protected void onDropped() {
+	}
+	
+	@Override
+	public int compareTo(PriorityRunnable another) {
+		if (priority != another.priority) {
+			return priority < another.priority ? -1 : 1;
+		}
+		if (sequence != another.sequence) {
+			return sequence > another.sequence ? -1 : 1;
+		}
+		return 0;
+	}
+}